@@ -0,0 +1,21 @@
+#!/bin/bash
+
+# Builds the application and the JMH benchmarks, then records results of the current commit:
+#   benchmarks/results/<commit>-throughput.json  ops/s with allocation rate (gc profiler)
+#   benchmarks/results/<commit>-latency.json     sampled latency with p0.90 / p0.99
+# Extra arguments are passed to JMH, e.g. ./benchmarks/run.sh AtmServiceBenchmark -p size=10000
+
+set -e
+cd "$(dirname "$0")/.."
+
+mvn -B -q install -DskipTests
+mvn -B -q -f benchmarks/pom.xml package
+
+COMMIT=$(git rev-parse --short HEAD)
+RESULTS=benchmarks/results
+mkdir -p $RESULTS
+
+java -jar benchmarks/target/benchmarks.jar -bm thrpt -tu s -prof gc \
+  -rf json -rff $RESULTS/$COMMIT-throughput.json "$@"
+java -jar benchmarks/target/benchmarks.jar -bm sample -tu us \
+  -rf json -rff $RESULTS/$COMMIT-latency.json "$@"
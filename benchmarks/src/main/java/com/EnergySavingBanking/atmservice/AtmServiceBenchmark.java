@@ -0,0 +1,135 @@
+package com.EnergySavingBanking.atmservice;
+
+import com.EnergySavingBanking.BinaryCodec;
+import com.EnergySavingBanking.DirectExecutorService;
+import com.EnergySavingBanking.InMemoryExchange;
+import com.EnergySavingBanking.JsonResponseWriter;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GENERATOR follows example/generate_test.py: region = i % 9999 + 1, random atmId,
+ * 70% STANDARD and 10% of each other type.
+ * UPGRADES is the worst case for priority changes: few regions with many ATMs,
+ * each ATM reported again and again with a more important request type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AtmServiceBenchmark {
+    private static final String[] REQUEST_TYPES = {"FAILURE_RESTART", "PRIORITY", "SIGNAL_LOW", "STANDARD"};
+
+    @Param({"1000", "10000", "100000"})
+    private int size;
+
+    @Param({"GENERATOR", "UPGRADES"})
+    private String distribution;
+
+    private AtmServiceHandler handler;
+    private int[] tasks;
+    private int[] order;
+    private String json;
+    private byte[] jsonBytes;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        handler = new AtmServiceHandler(new DirectExecutorService());
+        tasks = "UPGRADES".equals(distribution) ? upgradeTasks(size) : generatorTasks(size);
+        order = handler.calculateOrder(tasks);
+
+        StringBuilder builder = new StringBuilder(size * 56).append('[');
+        for (int i = 0; i < tasks.length; i++) {
+            int task = tasks[i];
+            builder.append(i == 0 ? "" : ",")
+                    .append("{\"region\":").append(task >>> 16)
+                    .append(",\"requestType\":\"").append(REQUEST_TYPES[(task >>> 14) & 3])
+                    .append("\",\"atmId\":").append(task & AtmTask.ATM_ID_BITMASK).append('}');
+        }
+        json = builder.append(']').toString();
+        jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer message = BinaryCodec.allocate(Integer.BYTES * (tasks.length + 1)).putInt(tasks.length);
+        for (int task : tasks) {
+            message.putInt(task);
+        }
+        binary = message.array();
+    }
+
+    @Benchmark
+    public int[] calculateOrder() {
+        return handler.calculateOrder(tasks);
+    }
+
+    @Benchmark
+    public int[] parseJson() {
+        return AtmServiceHandler.parseTasks(JsonParser.parseString(json).getAsJsonArray());
+    }
+
+    @Benchmark
+    public int serializeJson() throws IOException {
+        try (JsonResponseWriter jsonResponse = AtmServiceHandler.createJsonResponse(order)) {
+            return jsonResponse.size();
+        }
+    }
+
+    @Benchmark
+    public int handleJson() throws IOException {
+        InMemoryExchange exchange = new InMemoryExchange("/atms/calculateOrder", "application/json", jsonBytes,
+                order.length * 32);
+        handler.handle(exchange);
+        return exchange.getResponseSize();
+    }
+
+    @Benchmark
+    public int handleBinary() throws IOException {
+        InMemoryExchange exchange = new InMemoryExchange("/atms/calculateOrder", BinaryCodec.CONTENT_TYPE, binary,
+                order.length * 4 + 4);
+        handler.handle(exchange);
+        return exchange.getResponseSize();
+    }
+
+    private static int[] generatorTasks(int size) {
+        Random random = new Random(size);
+        int[] tasks = new int[size];
+        for (int i = 0; i < size; i++) {
+            int percentile = random.nextInt(10);
+            int requestType = percentile < 7 ? 3 : percentile - 7;
+            tasks[i] = AtmTask.encodeTask(i % AtmTask.REGION_MAX + 1, requestType, random.nextInt(AtmTask.ATM_ID_MAX) + 1);
+        }
+        return tasks;
+    }
+
+    private static int[] upgradeTasks(int size) {
+        int regions = 4;
+        int atmsPerRegion = Math.max(1, Math.min(AtmTask.ATM_ID_MAX, size / (regions * 4)));
+        int[] tasks = new int[size];
+        for (int i = 0; i < size; i++) {
+            // every round of regions * atmsPerRegion tasks upgrades all ATMs once more
+            int round = i / (regions * atmsPerRegion);
+            int position = i % (regions * atmsPerRegion);
+            int requestType = 3 - round % 4;
+            tasks[i] = AtmTask.encodeTask(position % regions + 1, requestType, position / regions + 1);
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,100 @@
+package com.EnergySavingBanking.onlinegame;
+
+import com.EnergySavingBanking.BinaryCodec;
+import com.EnergySavingBanking.DirectExecutorService;
+import com.EnergySavingBanking.InMemoryExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RANDOM draws clan sizes uniformly from 1..groupCount.
+ * LARGE_CLANS only has clans bigger than half a group, so every clan opens
+ * its own group and first fit has to look at all of them, the worst case
+ * of a linear scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OnlineGameBenchmark {
+
+    @Param({"1000", "20000"})
+    private int size;
+
+    @Param({"7", "1000"})
+    private int groupCount;
+
+    @Param({"RANDOM", "LARGE_CLANS"})
+    private String distribution;
+
+    private OnlineGameCalculateHandler handler;
+    private int[] encodedClans;
+    private byte[] jsonBytes;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        handler = new OnlineGameCalculateHandler(new DirectExecutorService());
+        Random random = new Random(size);
+        encodedClans = new int[size];
+        int minPlayers = "LARGE_CLANS".equals(distribution) ? groupCount / 2 + 1 : 1;
+        for (int i = 0; i < size; i++) {
+            int numberOfPlayers = minPlayers + random.nextInt(groupCount - minPlayers + 1);
+            encodedClans[i] = Game.encodeClan(numberOfPlayers, random.nextInt(Game.MAX_POINTS) + 1);
+        }
+
+        StringBuilder builder = new StringBuilder(size * 40)
+                .append("{\"groupCount\":").append(groupCount).append(",\"clans\":[");
+        for (int i = 0; i < size; i++) {
+            builder.append(i == 0 ? "" : ",")
+                    .append("{\"numberOfPlayers\":").append(Game.decodeNumberOfPlayers(encodedClans[i]))
+                    .append(",\"points\":").append(Game.decodePoints(encodedClans[i])).append('}');
+        }
+        jsonBytes = builder.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer message = BinaryCodec.allocate(Integer.BYTES * (size + 2)).putInt(groupCount).putInt(size);
+        for (int encodedClan : encodedClans) {
+            message.putInt(encodedClan);
+        }
+        binary = message.array();
+    }
+
+    @Benchmark
+    public int[][] calculateGroups() {
+        // calculateGroups sorts in place
+        return new Game(groupCount, encodedClans.clone()).calculateGroups();
+    }
+
+    @Benchmark
+    public int handleJson() throws IOException {
+        InMemoryExchange exchange = new InMemoryExchange("/onlinegame/calculate", "application/json", jsonBytes,
+                size * 42);
+        handler.handle(exchange);
+        return exchange.getResponseSize();
+    }
+
+    @Benchmark
+    public int handleBinary() throws IOException {
+        InMemoryExchange exchange = new InMemoryExchange("/onlinegame/calculate", BinaryCodec.CONTENT_TYPE, binary,
+                size * 8 + 4);
+        handler.handle(exchange);
+        return exchange.getResponseSize();
+    }
+}
@@ -0,0 +1,142 @@
+package com.EnergySavingBanking.transactions;
+
+import com.EnergySavingBanking.BinaryCodec;
+import com.EnergySavingBanking.InMemoryExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accounts are drawn uniformly from a pool of the given size, a pool of 10
+ * gives hot accounts, a pool as big as the batch gives a report with
+ * nearly twice as many accounts as transactions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionsReportBenchmark {
+    private static final int CHUNK_SIZE = 10_000;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    @Param({"10000", "100000"})
+    private int size;
+
+    @Param({"10", "100000"})
+    private int accounts;
+
+    private ExecutorService executorService;
+    private TransactionsReportHandler handler;
+    private AccountKeyTable accountKeys;
+    private List<List<Transaction>> chunks;
+    private byte[] jsonBytes;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(CORES);
+        handler = new TransactionsReportHandler(executorService);
+        Random random = new Random(size);
+
+        String[] accountPool = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            StringBuilder accountNumber = new StringBuilder(AccountKey.ACCOUNT_NUMBER_LENGTH);
+            for (int digit = 0; digit < AccountKey.ACCOUNT_NUMBER_LENGTH; digit++) {
+                accountNumber.append((char) ('0' + random.nextInt(10)));
+            }
+            accountPool[i] = accountNumber.toString();
+        }
+
+        accountKeys = new AccountKeyTable();
+        chunks = new ArrayList<>();
+        StringBuilder json = new StringBuilder(size * 110).append('[');
+        ByteBuffer message = BinaryCodec.allocate(Integer.BYTES + size * 5 * Long.BYTES).putInt(size);
+        List<Transaction> chunk = new ArrayList<>(CHUNK_SIZE);
+        for (int i = 0; i < size; i++) {
+            String debitAccount = accountPool[random.nextInt(accounts)];
+            String creditAccount = accountPool[random.nextInt(accounts)];
+            long amount = 1 + random.nextInt(1_000_000);
+
+            chunk.add(new Transaction(accountKeys.intern(AccountKey.high(debitAccount), AccountKey.low(debitAccount)),
+                    accountKeys.intern(AccountKey.high(creditAccount), AccountKey.low(creditAccount)), amount));
+            if (chunk.size() == CHUNK_SIZE) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(CHUNK_SIZE);
+            }
+
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"debitAccount\":\"").append(debitAccount)
+                    .append("\",\"creditAccount\":\"").append(creditAccount)
+                    .append("\",\"amount\":").append(amount / 100).append('.')
+                    .append(amount % 100 < 10 ? "0" : "").append(amount % 100).append('}');
+            message.putLong(AccountKey.high(debitAccount)).putLong(AccountKey.low(debitAccount))
+                    .putLong(AccountKey.high(creditAccount)).putLong(AccountKey.low(creditAccount))
+                    .putLong(amount);
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        jsonBytes = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        binary = message.array();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdown();
+    }
+
+    @Benchmark
+    public int aggregateChunks() {
+        ShardedAggregator aggregator = new ShardedAggregator(accountKeys, CORES, CORES, executorService);
+        for (List<Transaction> chunk : chunks) {
+            if (chunk.size() < CHUNK_SIZE) {
+                aggregator.submitInline(chunk);
+            } else {
+                aggregator.submitAsync(chunk);
+            }
+        }
+        AccountDataMergeIterator accountData = aggregator.finish();
+        int count = 0;
+        while (accountData.hasNext()) {
+            count += accountData.next().getDebitCount();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int handleJson() throws IOException {
+        InMemoryExchange exchange = new InMemoryExchange("/transactions/report", "application/json", jsonBytes,
+                Math.min(size, accounts) * 90);
+        handler.handle(exchange);
+        return exchange.getResponseSize();
+    }
+
+    @Benchmark
+    public int handleBinary() throws IOException {
+        InMemoryExchange exchange = new InMemoryExchange("/transactions/report", BinaryCodec.CONTENT_TYPE, binary,
+                Math.min(size, accounts) * 32);
+        handler.handle(exchange);
+        return exchange.getResponseSize();
+    }
+}
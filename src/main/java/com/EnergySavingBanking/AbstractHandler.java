@@ -1,13 +1,19 @@
 package com.EnergySavingBanking;
 
+import com.EnergySavingBanking.metrics.CountingInputStream;
+import com.EnergySavingBanking.metrics.CountingOutputStream;
+import com.EnergySavingBanking.metrics.EndpointMetrics;
+import com.EnergySavingBanking.metrics.Metrics;
+import com.EnergySavingBanking.metrics.RequestTimer;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -19,13 +25,20 @@ import java.util.concurrent.ExecutorService;
  * Subclasses of AbstractHandler should override the
  * {@link #processRequestData(String, HttpExchange)} method to implement their
  * own custom request processing logic.
+ * <p>
+ * Every request is measured for Metrics: body sizes, status and latency,
+ * split into phases where the subclass calls {@link #markParsed()} and
+ * {@link #markComputed()}.
  */
 public abstract class AbstractHandler implements HttpHandler {
 
     protected ExecutorService executorService;
 
     private static final String REQUEST_PROCESSING_INTERRUPTED_MESSAGE = "Request processing interrupted";
+    private static final String UNSUPPORTED_CONTENT_TYPE_MESSAGE = "Unsupported Content-Type";
     private static final String ERROR_HEADER_MESSAGE = "Error: ";
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    private static final String REQUEST_TOO_LARGE_MESSAGE = "Request body too large";
 
 
     public AbstractHandler(ExecutorService executorService) {
@@ -34,6 +47,27 @@ public abstract class AbstractHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+        if (!Metrics.ENABLED) {
+            dispatch(exchange);
+            return;
+        }
+        EndpointMetrics metrics = Metrics.endpoint(endpointName(exchange));
+        CountingInputStream requestBody = new CountingInputStream(exchange.getRequestBody());
+        CountingOutputStream responseBody = new CountingOutputStream(exchange.getResponseBody());
+        exchange.setStreams(requestBody, responseBody);
+
+        RequestTimer timer = metrics.requestStarted();
+        try {
+            dispatch(exchange);
+        } catch (IOException | RuntimeException e) {
+            metrics.requestFailed();
+            throw e;
+        } finally {
+            metrics.requestFinished(timer, exchange.getResponseCode(), requestBody.count(), responseBody.count());
+        }
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
         if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
             try {
                 handlePostRequest(exchange);
@@ -47,40 +81,217 @@ public abstract class AbstractHandler implements HttpHandler {
         }
     }
 
+    private String endpointName(HttpExchange exchange) {
+        HttpContext context = exchange.getHttpContext();
+        return context != null ? context.getPath() : getClass().getSimpleName();
+    }
+
+    /**
+     * Ends the parse phase of the current request, called on the request thread.
+     */
+    protected static void markParsed() {
+        RequestTimer.markParsed();
+    }
+
+    /**
+     * Ends the compute phase of the current request, the rest is serialization.
+     */
+    protected static void markComputed() {
+        RequestTimer.markComputed();
+    }
+
     protected void handlePostRequest(HttpExchange exchange) throws IOException, InterruptedException {
-        String requestBody;
-        try (InputStream input = exchange.getRequestBody();
-             Scanner scanner = new Scanner(input, StandardCharsets.UTF_8)) {
-            requestBody = scanner.useDelimiter("\\A").next();
+        if (BinaryCodec.isBinary(exchange)) {
+            handleBinaryRequest(exchange);
+        } else {
+            handleJsonRequest(exchange);
+        }
+    }
+
+    protected void handleJsonRequest(HttpExchange exchange) throws IOException, InterruptedException {
+        RequestBody requestBody = readRequestBody(exchange);
+        if (requestBody != null) {
+            processCached(exchange, requestBody, false,
+                    () -> processJsonRequest(requestBody, exchange));
+        }
+    }
+
+    /**
+     * Handles a JSON request from its raw UTF-8 bytes, by default decoded for
+     * {@link #processRequestData(String, HttpExchange)}.
+     * The bytes live in a pooled buffer and are only valid during the call.
+     */
+    protected void processJsonRequest(RequestBody requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException, InterruptedException {
+        processRequestData(requestBody.utf8(), exchange);
+    }
+
+    protected abstract void processRequestData(String requestBody, HttpExchange exchange) throws IOException, IllegalArgumentException,InterruptedException;
+
+    protected void handleBinaryRequest(HttpExchange exchange) throws IOException, InterruptedException {
+        RequestBody requestBody = readRequestBody(exchange);
+        if (requestBody != null) {
+            processCached(exchange, requestBody, true,
+                    () -> processBinaryRequest(requestBody.asByteBuffer(), exchange));
+        }
+    }
+
+    // null once a body over the size limit has been answered with 413
+    private RequestBody readRequestBody(HttpExchange exchange) throws IOException {
+        RequestBody requestBody = RequestBody.read(exchange);
+        if (requestBody == null) {
+            sendErrorResponse(exchange, 413, REQUEST_TOO_LARGE_MESSAGE);
+        }
+        return requestBody;
+    }
+
+    /**
+     * Answers from the ResponseCache when it is enabled for the endpoint and
+     * holds a response for the same body, otherwise processes the request and
+     * keeps a successful response for the next identical one.
+     */
+    private void processCached(HttpExchange exchange, RequestBody requestBody, boolean binary,
+                               RequestProcessor processor) throws IOException, InterruptedException {
+        String endpoint = endpointName(exchange);
+        ResponseCache responseCache = ResponseCache.forEndpoint(endpoint);
+        if (responseCache == null) {
+            process(exchange, processor);
+            return;
+        }
+
+        // the query selects options like the grouping strategy, so it is part of the key
+        String query = exchange.getRequestURI().getRawQuery();
+        ResponseCache.Key key = ResponseCache.key(query == null ? endpoint : endpoint + '?' + query, binary,
+                requestBody.bytes(), requestBody.length());
+        ResponseCache.CachedResponse cachedResponse = responseCache.get(key);
+        if (cachedResponse != null) {
+            sendCachedResponse(exchange, cachedResponse);
+            return;
+        }
+        if (!responseCache.admit(key)) {
+            process(exchange, processor);
+            return;
         }
 
+        ResponseCache.ResponseCapture capture = new ResponseCache.ResponseCapture(exchange.getResponseBody(),
+                responseCache.maxResponseBytes());
+        exchange.setStreams(null, capture);
+        process(exchange, processor);
+        byte[] response = capture.toByteArray();
+        if (exchange.getResponseCode() == 200 && response != null) {
+            responseCache.put(key, exchange.getResponseHeaders().getFirst("Content-Type"), response);
+        }
+    }
+
+    private void process(HttpExchange exchange, RequestProcessor processor) throws IOException, InterruptedException {
         try {
-            processRequestData(requestBody, exchange);
+            processor.process();
         } catch (IllegalArgumentException e) {
             sendErrorResponse(exchange, e.getMessage());
         }
     }
 
-    protected abstract void processRequestData(String requestBody, HttpExchange exchange) throws IOException, IllegalArgumentException,InterruptedException;
+    private static void sendCachedResponse(HttpExchange exchange, ResponseCache.CachedResponse cachedResponse)
+            throws IOException {
+        byte[] response = cachedResponse.getBody();
+        exchange.getResponseHeaders().set("Content-Type", cachedResponse.getContentType());
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(response);
+            output.flush();
+        }
+    }
+
+    /**
+     * Handles a request in the BinaryCodec format, handlers without a binary
+     * layout answer 415.
+     */
+    protected void processBinaryRequest(ByteBuffer requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException, InterruptedException {
+        sendErrorResponse(exchange, 415, UNSUPPORTED_CONTENT_TYPE_MESSAGE);
+    }
 
     protected void sendErrorResponse(HttpExchange exchange, String errorMessage) throws IOException {
+        sendErrorResponse(exchange, 400, errorMessage);
+    }
+
+    protected void sendErrorResponse(HttpExchange exchange, int statusCode, String errorMessage) throws IOException {
         String response = ERROR_HEADER_MESSAGE + errorMessage;
         byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "text/plain");
-        exchange.sendResponseHeaders(400, responseBytes.length);
+        exchange.sendResponseHeaders(statusCode, responseBytes.length);
         try (OutputStream output = exchange.getResponseBody()) {
             output.write(responseBytes);
             output.flush();
         }
     }
 
-    protected void sendJsonResponse(HttpExchange exchange, String jsonResponse) throws IOException {
-        byte[] responseBytes = jsonResponse.getBytes(StandardCharsets.UTF_8);
+    protected void sendJsonResponse(HttpExchange exchange, JsonResponseWriter jsonResponse) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(200, responseBytes.length);
+        exchange.sendResponseHeaders(200, jsonResponse.size());
         try (OutputStream output = exchange.getResponseBody()) {
-            output.write(responseBytes);
+            jsonResponse.writeTo(output);
+            output.flush();
+        } finally {
+            jsonResponse.close();
+        }
+    }
+
+    protected void sendBinaryResponse(HttpExchange exchange, ByteBuffer response) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", BinaryCodec.CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, response.position());
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(response.array(), 0, response.position());
             output.flush();
         }
     }
+
+    @FunctionalInterface
+    private interface RequestProcessor {
+        void process() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Sends the headers of a chunked JSON response, the body is written with
+     * the returned writer and ends when it is closed.
+     */
+    protected JsonResponseWriter startChunkedJsonResponse(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        return JsonResponseWriter.streaming(exchange.getResponseBody());
+    }
+
+    /**
+     * Sends the headers of a chunked newline delimited JSON response, see
+     * {@link #startChunkedJsonResponse(HttpExchange)}.
+     */
+    protected JsonResponseWriter startNdjsonResponse(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", NDJSON_CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, 0);
+        return JsonResponseWriter.ndjson(exchange.getResponseBody());
+    }
+
+    /**
+     * @return the decoded value of the first query parameter with the name, or null
+     */
+    protected static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            String key = separator < 0 ? parameter : parameter.substring(0, separator);
+            if (name.equals(URLDecoder.decode(key, StandardCharsets.UTF_8))) {
+                return separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    // true if the client lists NDJSON in its Accept header
+    protected static boolean acceptsNdjson(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.contains(NDJSON_CONTENT_TYPE);
+    }
 }
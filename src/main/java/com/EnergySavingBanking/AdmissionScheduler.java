@@ -0,0 +1,234 @@
+package com.EnergySavingBanking;
+
+import com.EnergySavingBanking.metrics.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of the SCHEDULED engine: one pool shared by all endpoints
+ * whose queue is ordered by estimated cost instead of arrival.
+ * The cost of a request is estimated from its Content-Length with a linear
+ * model per endpoint, fitted to the service times of the latest requests.
+ * The queue runs requests by arrival plus estimated cost, so a small request
+ * overtakes a huge transaction report that arrived less than the report's
+ * cost before it, while the report still gets its turn once it has waited that long.
+ * Every request has to finish within server.scheduled.deadlineMillis of its
+ * arrival. One that cannot, judged from the work queued ahead of it, the work
+ * still running and its own cost, is answered with 503 on arrival, and again
+ * when it reaches a worker too late, before any CPU is spent on it.
+ * Until an endpoint has enough samples its requests are estimated at zero and always admitted.
+ * Only executed requests are sampled, so a request over the deadline is still
+ * admitted when the server is idle, and one per deadline when the endpoint has
+ * no fresh sample, otherwise an estimate gone too high would never come down.
+ * A shed request has its body read and dropped first, for the 503 to reach the client.
+ */
+final class AdmissionScheduler {
+
+    private static final String SERVER_BUSY_MESSAGE = "Server busy, try again later";
+    private static final String DEADLINE_MESSAGE = "Request cannot be served before its deadline, try again later";
+
+    private final ThreadPoolExecutor pool;
+    private final int threads;
+    private final int queueCapacity;
+    private final long deadlineNanos;
+    private final Map<String, CostModel> costModels = new ConcurrentHashMap<>();
+    private final Set<ScheduledRequest> running = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequence = new AtomicLong();
+
+    AdmissionScheduler(int threads, int queueCapacity, long deadlineMillis) {
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        // tasks are queued as they are, execute() does not wrap them, so the queue can order them
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), ServerEngine.threadFactory("scheduled"));
+        Metrics.registerExecutor("scheduled", pool);
+    }
+
+    HttpHandler handler(String path, AbstractHandler handler) {
+        CostModel costModel = costModels.computeIfAbsent(path, ignored -> new CostModel());
+        return exchange -> {
+            long arrival = System.nanoTime();
+            long bytes = contentLength(exchange);
+            long estimatedCost = costModel.estimate(bytes);
+            ScheduledRequest request = new ScheduledRequest(path, handler, exchange, costModel, bytes, arrival,
+                    estimatedCost, sequence.getAndIncrement());
+            if (pool.getQueue().size() >= queueCapacity) {
+                shed(request, SERVER_BUSY_MESSAGE);
+                return;
+            }
+            request.probe = arrival + estimatedWait(request) + estimatedCost > request.deadline;
+            if (request.probe && !isIdle() && !costModel.claimProbe(arrival, deadlineNanos)) {
+                shed(request, DEADLINE_MESSAGE);
+            } else {
+                pool.execute(request);
+            }
+        };
+    }
+
+    private boolean isIdle() {
+        return running.isEmpty() && pool.getQueue().isEmpty();
+    }
+
+    // queued requests that run before this one, plus what is left of the running ones, spread over the workers
+    private long estimatedWait(ScheduledRequest request) {
+        long work = 0;
+        for (Runnable queued : pool.getQueue()) {
+            ScheduledRequest other = (ScheduledRequest) queued;
+            if (other.compareTo(request) < 0) {
+                work += other.estimatedCost;
+            }
+        }
+        long now = System.nanoTime();
+        for (ScheduledRequest other : running) {
+            work += Math.max(0, other.estimatedCost - (now - other.started));
+        }
+        return work / threads;
+    }
+
+    private static void shed(ScheduledRequest request, String message) throws IOException {
+        if (Metrics.ENABLED) {
+            Metrics.endpoint(request.path).responseSent(503);
+        }
+        RequestBody.discardRest(request.exchange);
+        request.handler.sendErrorResponse(request.exchange, 503, message);
+    }
+
+    // -1 when the body is chunked or the header is malformed
+    private static long contentLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private final class ScheduledRequest implements Runnable, Comparable<ScheduledRequest> {
+        private final String path;
+        private final AbstractHandler handler;
+        private final HttpExchange exchange;
+        private final CostModel costModel;
+        private final long bytes;
+        private final long estimatedCost;
+        private final long deadline;
+        private final long priority;
+        private final long sequence;
+        // admitted over its deadline to sample the cost again, it runs whatever the estimate
+        private boolean probe;
+        private volatile long started;
+
+        ScheduledRequest(String path, AbstractHandler handler, HttpExchange exchange, CostModel costModel,
+                         long bytes, long arrival, long estimatedCost, long sequence) {
+            this.path = path;
+            this.handler = handler;
+            this.exchange = exchange;
+            this.costModel = costModel;
+            this.bytes = bytes;
+            this.estimatedCost = estimatedCost;
+            this.deadline = arrival + deadlineNanos;
+            this.priority = arrival + estimatedCost;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            started = System.nanoTime();
+            if (!probe && started + estimatedCost > deadline) {
+                try {
+                    shed(this, DEADLINE_MESSAGE);
+                } catch (IOException e) {
+                    exchange.close();
+                }
+                return;
+            }
+            running.add(this);
+            try {
+                ServerEngine.handleOnPool(handler, exchange);
+            } finally {
+                running.remove(this);
+                costModel.record(bytes, System.nanoTime() - started);
+            }
+        }
+
+        @Override
+        public int compareTo(ScheduledRequest other) {
+            int byPriority = Long.compare(priority, other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Service time = fixed + perByte x bytes, a least squares fit with
+     * exponentially decaying weights, so the model follows changes of load
+     * and payloads. Requests without a Content-Length are estimated at the
+     * average size seen so far.
+     */
+    private static final class CostModel {
+        // weight kept per new sample, the fit covers roughly the last 50 requests
+        private static final double DECAY = 0.98;
+        private static final double MIN_WEIGHT = 4;
+
+        private double weight;
+        private long lastSample = System.nanoTime();
+        private double sumBytes;
+        private double sumNanos;
+        private double sumBytesSquared;
+        private double sumBytesNanos;
+
+        synchronized void record(long bytes, long nanos) {
+            double x = bytes >= 0 ? bytes : meanBytes();
+            lastSample = System.nanoTime();
+            weight = weight * DECAY + 1;
+            sumBytes = sumBytes * DECAY + x;
+            sumNanos = sumNanos * DECAY + nanos;
+            sumBytesSquared = sumBytesSquared * DECAY + x * x;
+            sumBytesNanos = sumBytesNanos * DECAY + x * nanos;
+        }
+
+        /**
+         * Lets one request through, whatever its estimate, once no sample was
+         * recorded for maxAgeNanos, and restarts the wait for the next one.
+         */
+        synchronized boolean claimProbe(long now, long maxAgeNanos) {
+            if (now - lastSample < maxAgeNanos) {
+                return false;
+            }
+            lastSample = now;
+            return true;
+        }
+
+        /**
+         * @return estimated service time in nanoseconds, 0 while there are too few samples
+         */
+        synchronized long estimate(long bytes) {
+            if (weight < MIN_WEIGHT) {
+                return 0;
+            }
+            double x = bytes >= 0 ? bytes : meanBytes();
+            double meanBytes = meanBytes();
+            double meanNanos = sumNanos / weight;
+            double variance = sumBytesSquared / weight - meanBytes * meanBytes;
+            double covariance = sumBytesNanos / weight - meanBytes * meanNanos;
+            // bigger bodies never cost less, equal sizes leave only the mean
+            double perByte = variance > 0 ? Math.max(0, covariance / variance) : 0;
+            return (long) Math.max(0, meanNanos + perByte * (x - meanBytes));
+        }
+
+        private double meanBytes() {
+            return weight > 0 ? sumBytes / weight : 0;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.EnergySavingBanking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings read once from application.properties on the classpath.
+ * Every key can be overridden at startup with a -D system property of the same name.
+ */
+public final class ApplicationProperties {
+
+    private static final String PROPERTIES_FILE = "/application.properties";
+    private static final Properties PROPERTIES = load();
+
+    private ApplicationProperties() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key, PROPERTIES.getProperty(key));
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static Properties load() {
+        Properties properties = new Properties();
+        try (InputStream input = ApplicationProperties.class.getResourceAsStream(PROPERTIES_FILE)) {
+            if (input != null) {
+                properties.load(input);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return properties;
+    }
+}
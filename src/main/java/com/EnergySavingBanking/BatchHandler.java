@@ -0,0 +1,197 @@
+package com.EnergySavingBanking;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs many small requests in one exchange, so headers, flushes and the
+ * handler dispatch are paid once per batch:
+ * <pre>
+ *   request  [{"endpoint": "/atms/calculateOrder", "body": [...]}, ...]
+ *   response [{"status": 200, "body": [...]}, {"status": 400, "error": "Invalid region value"}, ...]
+ * </pre>
+ * Items are pipelined: the request thread parses the next item while the
+ * executor computes the ones before it, and results are streamed back in
+ * request order as soon as the oldest one is done. At most MAX_IN_FLIGHT
+ * items wait for their turn, which bounds memory for long batches.
+ * A malformed item ends the batch with a 400 item, later ones can't be told apart.
+ * Once the response has started every item gets a result, one that fails
+ * unexpectedly is answered with a 500 item instead of ending the response.
+ */
+public class BatchHandler extends AbstractHandler {
+    private static final String INVALID_BATCH_MESSAGE = "Invalid batch, expected an array of requests";
+    private static final String MALFORMED_BATCH_MESSAGE = "Malformed batch item";
+    private static final String UNKNOWN_ENDPOINT_MESSAGE = "Unknown endpoint";
+    private static final String INVALID_REQUEST_MESSAGE = "Invalid request body";
+    private static final String ITEM_FAILED_MESSAGE = "Request could not be processed";
+    private static final int MAX_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final Map<String, BatchItemHandler<?, ?>> handlers;
+
+    /**
+     * @param handlers item handlers by the endpoint path they serve on their own
+     */
+    public BatchHandler(ExecutorService executorService, Map<String, BatchItemHandler<?, ?>> handlers) {
+        super(executorService);
+        this.handlers = Map.copyOf(handlers);
+    }
+
+    @Override
+    protected void processJsonRequest(RequestBody requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException {
+        processBatch(new InputStreamReader(new ByteArrayInputStream(requestBody.bytes(), 0, requestBody.length()),
+                StandardCharsets.UTF_8), exchange);
+    }
+
+    @Override
+    protected void processRequestData(String requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException {
+        processBatch(new StringReader(requestBody), exchange);
+    }
+
+    private void processBatch(Reader json, HttpExchange exchange) throws IOException, IllegalArgumentException {
+        JsonReader reader = new JsonReader(json);
+        try {
+            reader.beginArray();
+        } catch (IOException | IllegalStateException e) {
+            throw new IllegalArgumentException(INVALID_BATCH_MESSAGE);
+        }
+
+        ArrayDeque<CompletableFuture<ItemResult>> pending = new ArrayDeque<>();
+        try (JsonResponseWriter jsonResponse = startChunkedJsonResponse(exchange)) {
+            jsonResponse.beginArray();
+            ItemResult malformed = null;
+            try {
+                while (reader.hasNext()) {
+                    pending.add(parseAndSubmit(reader));
+                    // keep the pipeline full, but never let finished results wait
+                    while (!pending.isEmpty() && (pending.size() > MAX_IN_FLIGHT || pending.peek().isDone())) {
+                        writeResult(pending.poll(), jsonResponse);
+                    }
+                }
+                reader.endArray();
+            } catch (IOException | IllegalStateException | JsonParseException e) {
+                malformed = ItemResult.error(400, MALFORMED_BATCH_MESSAGE);
+            }
+            markParsed();
+            while (!pending.isEmpty()) {
+                writeResult(pending.poll(), jsonResponse);
+            }
+            markComputed();
+            if (malformed != null) {
+                malformed.writeTo(jsonResponse);
+            }
+            jsonResponse.endArray();
+        }
+    }
+
+    private CompletableFuture<ItemResult> parseAndSubmit(JsonReader reader) throws IOException {
+        String endpoint = null;
+        JsonElement body = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "endpoint" -> endpoint = reader.nextString();
+                case "body" -> body = JsonParser.parseReader(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        BatchItemHandler<?, ?> handler = endpoint != null ? handlers.get(endpoint) : null;
+        if (handler == null) {
+            return CompletableFuture.completedFuture(ItemResult.error(404, UNKNOWN_ENDPOINT_MESSAGE));
+        }
+        if (body == null) {
+            return CompletableFuture.completedFuture(ItemResult.error(400, INVALID_REQUEST_MESSAGE));
+        }
+        return submit(handler, body);
+    }
+
+    private <P, R> CompletableFuture<ItemResult> submit(BatchItemHandler<P, R> handler, JsonElement body) {
+        P request;
+        try {
+            request = handler.parseItem(body);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(ItemResult.error(400, errorMessage(e)));
+        } catch (RuntimeException e) {
+            // wrong JSON types, which Gson reports as IllegalStateException or alike
+            return CompletableFuture.completedFuture(ItemResult.error(400, INVALID_REQUEST_MESSAGE));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                R result = handler.computeItem(request);
+                return new ItemResult(200, null, writer -> handler.writeItem(result, writer));
+            } catch (IllegalArgumentException e) {
+                return ItemResult.error(400, errorMessage(e));
+            } catch (RuntimeException e) {
+                // the 200 headers of the batch are out, a failing item must not cut the response off
+                return ItemResult.error(500, ITEM_FAILED_MESSAGE);
+            }
+        }, executorService);
+    }
+
+    // some parsers throw without a message, like BigDecimal on an empty string
+    private static String errorMessage(IllegalArgumentException e) {
+        return e.getMessage() != null ? e.getMessage() : INVALID_REQUEST_MESSAGE;
+    }
+
+    private static void writeResult(CompletableFuture<ItemResult> result, JsonResponseWriter jsonResponse)
+            throws IOException {
+        ItemResult itemResult;
+        try {
+            itemResult = result.join();
+        } catch (CompletionException | CancellationException e) {
+            itemResult = ItemResult.error(500, ITEM_FAILED_MESSAGE);
+        }
+        itemResult.writeTo(jsonResponse);
+    }
+
+    @FunctionalInterface
+    private interface BodyWriter {
+        void write(JsonResponseWriter writer) throws IOException;
+    }
+
+    private static final class ItemResult {
+        private final int status;
+        private final String error;
+        private final BodyWriter body;
+
+        private ItemResult(int status, String error, BodyWriter body) {
+            this.status = status;
+            this.error = error;
+            this.body = body;
+        }
+
+        static ItemResult error(int status, String error) {
+            return new ItemResult(status, error, null);
+        }
+
+        void writeTo(JsonResponseWriter jsonResponse) throws IOException {
+            jsonResponse.beginObject().name("status").value(status);
+            if (body != null) {
+                jsonResponse.name("body");
+                body.write(jsonResponse);
+            } else {
+                jsonResponse.name("error").value(error);
+            }
+            jsonResponse.endObject();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.EnergySavingBanking;
+
+import com.google.gson.JsonElement;
+
+import java.io.IOException;
+
+/**
+ * A handler that also runs as an item of a /batch request, split into the
+ * stages BatchHandler pipelines: parse on the request thread, compute on the
+ * executor, write into the batch response in request order.
+ *
+ * @param <P> parsed and validated request
+ * @param <R> result of the computation
+ */
+public interface BatchItemHandler<P, R> {
+
+    /**
+     * @param body the request body as the endpoint takes it on its own
+     * @throws IllegalArgumentException with the message the endpoint answers 400 with
+     */
+    P parseItem(JsonElement body) throws IllegalArgumentException;
+
+    /**
+     * Called on an executor thread, with no access to the exchange.
+     *
+     * @throws IllegalArgumentException with the message the endpoint answers 400 with
+     */
+    R computeItem(P request) throws IllegalArgumentException;
+
+    /**
+     * Writes the result as the JSON value the endpoint responds with.
+     */
+    void writeItem(R result, JsonResponseWriter writer) throws IOException;
+}
@@ -0,0 +1,70 @@
+package com.EnergySavingBanking;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compact binary protocol for internal batch clients, selected with
+ * "Content-Type: application/x-packed-binary". Messages are little-endian,
+ * every list is prefixed with its int32 length and records map straight to
+ * the packed representations used by the handlers (AtmTask, Game.encodeClan,
+ * AccountKey), so no text parsing is involved. Layouts are documented on the
+ * processBinaryRequest method of every handler.
+ */
+public final class BinaryCodec {
+
+    public static final String CONTENT_TYPE = "application/x-packed-binary";
+
+    public static final String TRUNCATED_MESSAGE = "Truncated binary message";
+    public static final String INVALID_LENGTH_MESSAGE = "Invalid binary list length";
+
+    private BinaryCodec() {
+    }
+
+    public static boolean isBinary(HttpExchange exchange) {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return contentType != null && contentType.regionMatches(true, 0, CONTENT_TYPE, 0, CONTENT_TYPE.length());
+    }
+
+    public static ByteBuffer wrap(byte[] message) {
+        return ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static ByteBuffer wrap(byte[] message, int length) {
+        return ByteBuffer.wrap(message, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads a list length and checks that the message holds that many records.
+     */
+    public static int readLength(ByteBuffer message, int recordSize) throws IllegalArgumentException {
+        int length = readInt(message);
+        if (length < 0 || (long) length * recordSize > message.remaining()) {
+            throw new IllegalArgumentException(length < 0 ? INVALID_LENGTH_MESSAGE : TRUNCATED_MESSAGE);
+        }
+        return length;
+    }
+
+    public static int readInt(ByteBuffer message) throws IllegalArgumentException {
+        try {
+            return message.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(TRUNCATED_MESSAGE);
+        }
+    }
+
+    public static long readLong(ByteBuffer message) throws IllegalArgumentException {
+        try {
+            return message.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(TRUNCATED_MESSAGE);
+        }
+    }
+}
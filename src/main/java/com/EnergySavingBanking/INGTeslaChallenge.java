@@ -1,31 +1,90 @@
 package com.EnergySavingBanking;
 
+import com.EnergySavingBanking.atmservice.AtmRouteHandler;
 import com.EnergySavingBanking.atmservice.AtmServiceHandler;
+import com.EnergySavingBanking.metrics.Metrics;
+import com.EnergySavingBanking.metrics.MetricsHandler;
 import com.EnergySavingBanking.onlinegame.OnlineGameCalculateHandler;
+import com.EnergySavingBanking.transactions.PersistentLedger;
+import com.EnergySavingBanking.transactions.TransactionsFileReport;
 import com.EnergySavingBanking.transactions.TransactionsReportHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class INGTeslaChallenge {
 
+    private static final String USAGE = "Usage: java -jar INGTeslaChallenge.jar [report <transactions.json> <report.json>]";
+
+    /**
+     * Starts the server, or with report writes the transaction report of a
+     * file in the /transactions/report request format to another file and exits.
+     */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(runCommand(args));
+        }
         try {
             HttpServer server = HttpServer.create(new InetSocketAddress(8080), 0);
-            ExecutorService executorService = Executors.newCachedThreadPool();
-            
-            server.createContext("/atms/calculateOrder", new AtmServiceHandler(executorService));
+            ServerEngine engine = ServerEngine.fromProperties();
+            engine.configure(server);
+            ExecutorService executorService = engine.computeExecutor();
+
+            AtmServiceHandler atmServiceHandler = new AtmServiceHandler(executorService);
+            engine.createContext(server, "/atms/calculateOrder", atmServiceHandler);
+
+            engine.createContext(server, "/atms/routes", new AtmRouteHandler(executorService));
+
+            TransactionsReportHandler transactionsReportHandler = new TransactionsReportHandler(executorService);
+            engine.createContext(server, "/transactions/report", transactionsReportHandler);
+
+            String ledgerDirectory = ApplicationProperties.getString("transactions.ledger.directory", null);
+            if (ledgerDirectory != null) {
+                PersistentLedger ledger = PersistentLedger.open(Paths.get(ledgerDirectory),
+                        ApplicationProperties.getBoolean("transactions.ledger.fsync", true),
+                        ApplicationProperties.getLong("transactions.ledger.snapshotWalBytes", 256L * 1024 * 1024));
+                engine.createContext(server, "/transactions/ledger", new TransactionsReportHandler(executorService, ledger));
+            }
 
-            server.createContext("/transactions/report", new TransactionsReportHandler(executorService));
+            OnlineGameCalculateHandler onlineGameCalculateHandler = new OnlineGameCalculateHandler(executorService);
+            engine.createContext(server, "/onlinegame/calculate", onlineGameCalculateHandler);
 
-            server.createContext("/onlinegame/calculate", new OnlineGameCalculateHandler(executorService));
+            // stateless endpoints only, /atms/routes and /transactions/ledger depend on earlier requests
+            engine.createContext(server, "/batch", new BatchHandler(executorService, Map.of(
+                    "/atms/calculateOrder", atmServiceHandler,
+                    "/transactions/report", transactionsReportHandler,
+                    "/onlinegame/calculate", onlineGameCalculateHandler)));
+
+            if (Metrics.ENABLED) {
+                server.createContext("/metrics", new MetricsHandler());
+            }
 
             server.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private static int runCommand(String[] args) {
+        if (args.length != 3 || !"report".equals(args[0])) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            TransactionsFileReport.write(Paths.get(args[1]), Paths.get(args[2]), executorService);
+            return 0;
+        } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+            // Gson reports JSON of the wrong shape, like an object instead of the array, as IllegalStateException
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } finally {
+            executorService.shutdown();
+        }
+    }
 }
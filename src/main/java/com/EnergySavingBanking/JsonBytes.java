@@ -0,0 +1,171 @@
+package com.EnergySavingBanking;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cursor over UTF-8 JSON bytes for the fast decode paths. It only accepts
+ * the plain shape our clients send: quoted keys and strings without escapes,
+ * integers without fraction, exponent or leading zeros.
+ * Anything else throws UNSUPPORTED and the caller falls back to Gson, which
+ * then produces exactly the result or error it always did.
+ */
+public final class JsonBytes {
+
+    /**
+     * Signals input outside the fast path, preallocated as it carries no information.
+     */
+    public static final RuntimeException UNSUPPORTED = new RuntimeException("Unsupported JSON shape", null,
+            false, false) {
+    };
+
+    // fits an int and keeps Gson's int conversion of bigger numbers out of the fast path
+    private static final int MAX_INT_DIGITS = 9;
+
+    private final byte[] json;
+    private final int end;
+    private int position;
+
+    public JsonBytes(byte[] json, int start, int end) {
+        this.json = json;
+        this.position = start;
+        this.end = end;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public boolean atEnd() {
+        skipWhitespace();
+        return position == end;
+    }
+
+    /**
+     * Skips whitespace and consumes the expected structural character.
+     */
+    public void expect(char c) {
+        skipWhitespace();
+        if (position == end || json[position] != c) {
+            throw UNSUPPORTED;
+        }
+        position++;
+    }
+
+    /**
+     * Skips whitespace and consumes the character if it is next.
+     */
+    public boolean consume(char c) {
+        skipWhitespace();
+        if (position < end && json[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a quoted string and returns the index of the candidate it equals.
+     */
+    public int nextString(byte[][] candidates) {
+        expect('"');
+        int start = position;
+        while (position < end && json[position] != '"') {
+            if (json[position] == '\\') {
+                throw UNSUPPORTED;
+            }
+            position++;
+        }
+        if (position == end) {
+            throw UNSUPPORTED;
+        }
+        int length = position++ - start;
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i].length == length && regionMatches(start, candidates[i])) {
+                return i;
+            }
+        }
+        throw UNSUPPORTED;
+    }
+
+    /**
+     * Reads an object key out of the candidates together with its colon.
+     */
+    public int nextKey(byte[][] candidates) {
+        int key = nextString(candidates);
+        expect(':');
+        return key;
+    }
+
+    public int nextInt() {
+        skipWhitespace();
+        boolean negative = position < end && json[position] == '-';
+        if (negative) {
+            position++;
+        }
+        int start = position;
+        int value = 0;
+        while (position < end && json[position] >= '0' && json[position] <= '9') {
+            value = value * 10 + (json[position++] - '0');
+        }
+        int digits = position - start;
+        if (digits == 0 || digits > MAX_INT_DIGITS || (digits > 1 && json[start] == '0')) {
+            throw UNSUPPORTED;
+        }
+        if (position < end && (json[position] == '.' || json[position] == 'e' || json[position] == 'E')) {
+            throw UNSUPPORTED;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Moves past the array starting here, strings are skipped as a whole.
+     *
+     * @return position of the closing bracket
+     */
+    public int skipFlatArray() {
+        expect('[');
+        while (position < end) {
+            byte b = json[position++];
+            if (b == ']') {
+                return position - 1;
+            } else if (b == '[' || b == '\\') {
+                throw UNSUPPORTED;
+            } else if (b == '"') {
+                while (position < end && json[position] != '"' && json[position] != '\\') {
+                    position++;
+                }
+                if (position == end || json[position++] != '"') {
+                    throw UNSUPPORTED;
+                }
+            }
+        }
+        throw UNSUPPORTED;
+    }
+
+    public static byte[][] utf8(String... values) {
+        byte[][] bytes = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    private boolean regionMatches(int start, byte[] candidate) {
+        for (int i = 0; i < candidate.length; i++) {
+            if (json[start + i] != candidate[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            byte b = json[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.EnergySavingBanking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal JSON encoder writing UTF-8 bytes directly, without building a
+ * JsonElement tree or an intermediate String.
+ * A buffered writer fills a per-thread byte buffer pre-sized from the caller's
+ * estimate, a streaming writer flushes to the given stream every
+ * STREAM_FLUSH_SIZE bytes, which keeps memory constant for huge responses.
+ * Output is compact unless json.prettyPrint is set, pretty output follows
+ * the Gson layout and is meant for debugging only.
+ * An NDJSON writer is always compact and ends every top level value with endLine.
+ */
+public class JsonResponseWriter implements Closeable {
+
+    public static final boolean PRETTY_PRINT = ApplicationProperties.getBoolean("json.prettyPrint", false);
+
+    private static final int STREAM_FLUSH_SIZE = 64 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_DEPTH = 32;
+    private static final String INDENT = "  ";
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+    private final OutputStream output;
+    private final boolean prettyPrint;
+    private byte[] buffer;
+    private int position;
+
+    // per nesting level: true until the first element was written
+    private final boolean[] empty = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    private JsonResponseWriter(byte[] buffer, OutputStream output, boolean prettyPrint) {
+        this.buffer = buffer;
+        this.output = output;
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Writer collecting the whole response in memory, to be sent with a known Content-Length.
+     */
+    public static JsonResponseWriter buffered(int estimatedSize) {
+        if (PRETTY_PRINT) {
+            // indentation and line breaks add roughly 40%
+            estimatedSize += estimatedSize >> 1;
+        }
+        byte[] buffer = BUFFERS.get();
+        BUFFERS.remove();
+        if (buffer == null || buffer.length < estimatedSize) {
+            buffer = new byte[Math.max(estimatedSize, 256)];
+        }
+        return new JsonResponseWriter(buffer, null, PRETTY_PRINT);
+    }
+
+    /**
+     * Writer flushing to the stream as it goes, the stream is closed with the writer.
+     */
+    public static JsonResponseWriter streaming(OutputStream output) {
+        return new JsonResponseWriter(new byte[STREAM_FLUSH_SIZE + 1024], output, PRETTY_PRINT);
+    }
+
+    /**
+     * Streaming writer for newline delimited JSON, one compact top level value per line.
+     */
+    public static JsonResponseWriter ndjson(OutputStream output) {
+        return new JsonResponseWriter(new byte[STREAM_FLUSH_SIZE + 1024], output, false);
+    }
+
+    public JsonResponseWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonResponseWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonResponseWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonResponseWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonResponseWriter name(String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        if (prettyPrint) {
+            writeAscii(": ");
+        } else {
+            writeByte(':');
+        }
+        afterName = true;
+        return this;
+    }
+
+    public JsonResponseWriter value(long value) throws IOException {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    public JsonResponseWriter value(String value) throws IOException {
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    // ends a top level value of an NDJSON stream
+    public JsonResponseWriter endLine() throws IOException {
+        writeByte('\n');
+        return this;
+    }
+
+    /**
+     * Writes unscaledValue * 10^-scale as a number with exactly scale
+     * fraction digits, the same text BigDecimal.toString gives for it.
+     */
+    public JsonResponseWriter scaledValue(long unscaledValue, int scale) throws IOException {
+        beforeValue();
+        if (unscaledValue == Long.MIN_VALUE) {
+            writeAscii(BigDecimal.valueOf(unscaledValue, scale).toString());
+            return this;
+        }
+        if (unscaledValue < 0) {
+            writeByte('-');
+            unscaledValue = -unscaledValue;
+        }
+        long divisor = 1;
+        for (int i = 0; i < scale; i++) {
+            divisor *= 10;
+        }
+        writeLong(unscaledValue / divisor);
+        if (scale > 0) {
+            writeByte('.');
+            long fraction = unscaledValue % divisor;
+            for (long digit = divisor / 10; digit > 0; digit /= 10) {
+                writeByte((int) ('0' + fraction / digit % 10));
+            }
+        }
+        return this;
+    }
+
+    // number of bytes in the buffer, the whole response for buffered writers
+    public int size() {
+        return position;
+    }
+
+    /**
+     * Copies the buffered response to the output, only for buffered writers.
+     */
+    public void writeTo(OutputStream target) throws IOException {
+        target.write(buffer, 0, position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (output != null) {
+            output.write(buffer, 0, position);
+            output.close();
+        } else if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+            BUFFERS.set(buffer);
+        }
+        buffer = null;
+    }
+
+    private JsonResponseWriter open(char bracket) throws IOException {
+        beforeValue();
+        writeByte(bracket);
+        empty[++depth] = true;
+        return this;
+    }
+
+    private JsonResponseWriter close(char bracket) throws IOException {
+        if (prettyPrint && !empty[depth]) {
+            newLine(depth - 1);
+        }
+        depth--;
+        writeByte(bracket);
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth == 0) {
+            return;
+        }
+        if (!empty[depth]) {
+            writeByte(',');
+        }
+        empty[depth] = false;
+        if (prettyPrint) {
+            newLine(depth);
+        }
+    }
+
+    private void newLine(int indentation) throws IOException {
+        writeByte('\n');
+        for (int i = 0; i < indentation; i++) {
+            writeAscii(INDENT);
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        ensureCapacity(20);
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // digits were written in reverse
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        ensureCapacity(value.length() + 2);
+        buffer[position++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                writeByte(c);
+            } else if (c == '"' || c == '\\') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20) {
+                writeAscii("\\u00");
+                writeByte(HEX_DIGITS[c >> 4]);
+                writeByte(HEX_DIGITS[c & 0xF]);
+            } else {
+                int end = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+                byte[] encoded = value.substring(i, end).getBytes(StandardCharsets.UTF_8);
+                ensureCapacity(encoded.length);
+                System.arraycopy(encoded, 0, buffer, position, encoded.length);
+                position += encoded.length;
+                i = end - 1;
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeAscii(String value) throws IOException {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensureCapacity(1);
+        buffer[position++] = (byte) b;
+    }
+
+    private void ensureCapacity(int additional) throws IOException {
+        if (output != null && position >= STREAM_FLUSH_SIZE) {
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+        if (position + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + additional));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.EnergySavingBanking;
+
+import java.util.Arrays;
+
+/**
+ * Sorts packed non-negative ints of a known bit width, like the clans of
+ * Game.encodeClan, in linear time: an LSD radix sort over 11 bit digits
+ * with one counting pass for all digits and a stable scatter per digit.
+ * A digit all values share is skipped, narrow domains pay for their real width.
+ * Below RADIX_THRESHOLD values the dual-pivot quicksort of Arrays.sort wins
+ * over the scatter passes and the scratch array, so it is used instead.
+ */
+public final class PackedSort {
+
+    private static final int DIGIT_BITS = 11;
+    private static final int RADIX = 1 << DIGIT_BITS;
+    private static final int DIGIT_MASK = RADIX - 1;
+    // measured crossover on 30 bit clans, about 1000 values
+    private static final int RADIX_THRESHOLD = 1024;
+
+    private PackedSort() {
+    }
+
+    /**
+     * Sorts ascending.
+     *
+     * @param bits width of the values, all of them must be in [0, 2^bits)
+     */
+    public static void sort(int[] values, int bits) {
+        if (values.length < RADIX_THRESHOLD) {
+            Arrays.sort(values);
+            return;
+        }
+        int digits = (bits + DIGIT_BITS - 1) / DIGIT_BITS;
+        int[][] counts = new int[digits][RADIX];
+        for (int value : values) {
+            for (int digit = 0; digit < digits; digit++) {
+                counts[digit][(value >>> digit * DIGIT_BITS) & DIGIT_MASK]++;
+            }
+        }
+
+        int[] source = values;
+        int[] target = new int[values.length];
+        for (int digit = 0; digit < digits; digit++) {
+            int[] offsets = counts[digit];
+            int shift = digit * DIGIT_BITS;
+            if (offsets[(source[0] >>> shift) & DIGIT_MASK] == source.length) {
+                continue;
+            }
+            int offset = 0;
+            for (int i = 0; i < RADIX; i++) {
+                int count = offsets[i];
+                offsets[i] = offset;
+                offset += count;
+            }
+            for (int value : source) {
+                target[offsets[(value >>> shift) & DIGIT_MASK]++] = value;
+            }
+            int[] sorted = target;
+            target = source;
+            source = sorted;
+        }
+        if (source != values) {
+            System.arraycopy(source, 0, values, 0, values.length);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.EnergySavingBanking;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Decodes a JSON array of flat objects into packed ints, large arrays in parallel.
+ * The raw bytes are split on element boundaries (a closing brace followed by a
+ * comma), every segment is validated and packed on its own worker and the
+ * segments are concatenated in input order.
+ * A split that lands inside a string can't go unnoticed: the segment before it
+ * then ends inside that string and gives up, so does the whole decode.
+ * Any element outside the fast path, invalid ones included, makes decode
+ * return null, callers fall back to their serial Gson parser, which reports
+ * the first error in input order exactly as before.
+ */
+public final class ParallelArrayDecoder {
+
+    @FunctionalInterface
+    public interface ElementDecoder {
+        /**
+         * Reads one object at the cursor and packs it.
+         *
+         * @throws RuntimeException JsonBytes.UNSUPPORTED if the object is not in the fast path or not valid
+         */
+        int decode(JsonBytes element);
+    }
+
+    // smaller segments cost more in hand-off than they save
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    // {"numberOfPlayers":1,"points":1}, is the smallest element we decode
+    private static final int MIN_ELEMENT_BYTES = 32;
+
+    private ParallelArrayDecoder() {
+    }
+
+    /**
+     * @param start position of the opening bracket
+     * @param end   position after the closing bracket, trailing whitespace allowed
+     * @return the packed elements, or null if the array has to be parsed by Gson
+     */
+    public static int[] decode(byte[] json, int start, int end, ElementDecoder decoder, Executor executor) {
+        try {
+            while (end > start && isWhitespace(json[end - 1])) {
+                end--;
+            }
+            JsonBytes array = new JsonBytes(json, start, end);
+            array.expect('[');
+            int contentStart = array.position();
+            if (array.consume(']')) {
+                return array.atEnd() ? new int[0] : null;
+            }
+            int contentEnd = end - 1;
+            if (json[contentEnd] != ']') {
+                return null;
+            }
+
+            int[] segmentEnds = split(ByteBuffer.wrap(json), contentStart, contentEnd);
+            if (segmentEnds.length == 1) {
+                return decodeSegment(json, contentStart, contentEnd, decoder);
+            }
+            return decodeInParallel(json, contentStart, segmentEnds, decoder, executor);
+        } catch (RuntimeException e) {
+            if (e == JsonBytes.UNSUPPORTED) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Splits the elements of an array into up to one segment per core, on
+     * element boundaries, see the class comment for splits inside strings.
+     *
+     * @param contentStart position after the opening bracket
+     * @param contentEnd   position of the closing bracket
+     * @return the end of every segment: the comma after it, contentEnd for the last one,
+     * the next segment starts after the comma
+     */
+    public static int[] split(ByteBuffer json, int contentStart, int contentEnd) {
+        int segments = Math.min(PARALLELISM, (contentEnd - contentStart) / MIN_SEGMENT_BYTES);
+        if (segments <= 1) {
+            return new int[]{contentEnd};
+        }
+        int segmentSize = (contentEnd - contentStart) / segments;
+        int[] segmentEnds = new int[segments];
+        int count = 0;
+        int segmentStart = contentStart;
+        while (segmentStart < contentEnd) {
+            int segmentEnd = count == segments - 1 ? contentEnd
+                    : nextBoundary(json, Math.max(segmentStart, contentStart + (count + 1) * segmentSize), contentEnd);
+            segmentEnds[count++] = segmentEnd;
+            segmentStart = segmentEnd + 1;
+        }
+        return Arrays.copyOf(segmentEnds, count);
+    }
+
+    private static int[] decodeInParallel(byte[] json, int contentStart, int[] segmentEnds,
+                                          ElementDecoder decoder, Executor executor) {
+        List<CompletableFuture<int[]>> parts = new ArrayList<>(segmentEnds.length);
+        int segmentStart = contentStart;
+        for (int segmentEnd : segmentEnds) {
+            int from = segmentStart;
+            parts.add(CompletableFuture.supplyAsync(() -> decodeSegment(json, from, segmentEnd, decoder), executor));
+            // the next segment starts after the comma
+            segmentStart = segmentEnd + 1;
+        }
+
+        int[][] decoded = new int[parts.size()][];
+        int total = 0;
+        try {
+            for (int i = 0; i < decoded.length; i++) {
+                decoded[i] = parts.get(i).join();
+                total += decoded[i].length;
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        int[] elements = new int[total];
+        int offset = 0;
+        for (int[] part : decoded) {
+            System.arraycopy(part, 0, elements, offset, part.length);
+            offset += part.length;
+        }
+        return elements;
+    }
+
+    /**
+     * @return position of the first comma following a closing brace at or after from, or end
+     */
+    private static int nextBoundary(ByteBuffer json, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (json.get(i) == '}') {
+                int next = i + 1;
+                while (next < end && isWhitespace(json.get(next))) {
+                    next++;
+                }
+                if (next < end && json.get(next) == ',') {
+                    return next;
+                }
+            }
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static int[] decodeSegment(byte[] json, int start, int end, ElementDecoder decoder) {
+        if (start >= end) {
+            throw JsonBytes.UNSUPPORTED;
+        }
+        int[] elements = new int[Math.max(16, (end - start) / MIN_ELEMENT_BYTES + 1)];
+        int count = 0;
+        JsonBytes segment = new JsonBytes(json, start, end);
+        do {
+            if (count == elements.length) {
+                elements = Arrays.copyOf(elements, count << 1);
+            }
+            elements[count++] = decoder.decode(segment);
+        } while (segment.consume(','));
+        if (!segment.atEnd()) {
+            throw JsonBytes.UNSUPPORTED;
+        }
+        return Arrays.copyOf(elements, count);
+    }
+}
@@ -0,0 +1,150 @@
+package com.EnergySavingBanking;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Request body read as raw bytes into a buffer pooled per worker thread.
+ * The buffer is sized from Content-Length up front and reused by the next
+ * request of the same thread, so a handler must not keep the bytes beyond
+ * its request, {@link #toByteArray()} copies them when it has to.
+ * Bodies over server.maxRequestBytes are refused from Content-Length alone,
+ * before a byte is read, bodies without one once they cross the limit.
+ * Buffers over server.pooledRequestBytes are used once and not kept, one
+ * huge request must not pin its memory to the thread for good.
+ */
+public final class RequestBody {
+
+    private static final long MAX_BYTES = ApplicationProperties.getLong("server.maxRequestBytes",
+            256L * 1024 * 1024);
+    private static final int MAX_POOLED_BYTES = ApplicationProperties.getInt("server.pooledRequestBytes",
+            4 * 1024 * 1024);
+    private static final int INITIAL_BYTES = 8 * 1024;
+    private static final ThreadLocal<byte[]> POOL = ThreadLocal.withInitial(() -> new byte[INITIAL_BYTES]);
+
+    private final byte[] bytes;
+    private final int length;
+
+    private RequestBody(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    /**
+     * Reads the whole body of the exchange.
+     *
+     * @return the body, or null if it is bigger than server.maxRequestBytes
+     */
+    public static RequestBody read(HttpExchange exchange) throws IOException {
+        long contentLength = contentLength(exchange);
+        if (contentLength > MAX_BYTES) {
+            return null;
+        }
+        try (InputStream input = exchange.getRequestBody()) {
+            return contentLength >= 0 ? readFixed(input, (int) contentLength) : readUntilEnd(input);
+        }
+    }
+
+    /**
+     * Reads and drops what is left of the body, up to server.maxRequestBytes,
+     * so an error answered before the body was read reaches the client.
+     * JDK HttpServer drains only a small remainder when the exchange is closed
+     * and resets the connection on a bigger one, while the client is still sending.
+     */
+    public static void discardRest(HttpExchange exchange) throws IOException {
+        // not skip(), the body streams of HttpServer skip past their end into the connection
+        InputStream input = exchange.getRequestBody();
+        byte[] buffer = new byte[INITIAL_BYTES];
+        long remaining = MAX_BYTES;
+        int read;
+        while (remaining > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) >= 0) {
+            remaining -= read;
+        }
+    }
+
+    /**
+     * The buffer holding the body in [0, length()), usually longer than the body.
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public String utf8() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // little endian view for BinaryCodec
+    public ByteBuffer asByteBuffer() {
+        return BinaryCodec.wrap(bytes, length);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private static RequestBody readFixed(InputStream input, int contentLength) throws IOException {
+        byte[] buffer = buffer(contentLength);
+        int length = input.readNBytes(buffer, 0, contentLength);
+        return new RequestBody(buffer, length);
+    }
+
+    private static RequestBody readUntilEnd(InputStream input) throws IOException {
+        byte[] buffer = POOL.get();
+        int length = 0;
+        int read;
+        while ((read = input.read(buffer, length, buffer.length - length)) >= 0) {
+            length += read;
+            if (length > MAX_BYTES) {
+                return null;
+            }
+            if (length == buffer.length) {
+                // one byte over the limit is enough to tell the body is too big
+                long grownLength = Math.min((long) length << 1, Math.min(MAX_BYTES + 1, Integer.MAX_VALUE - 8));
+                if (grownLength == length) {
+                    return null;
+                }
+                buffer = Arrays.copyOf(buffer, (int) grownLength);
+                if (buffer.length <= MAX_POOLED_BYTES) {
+                    POOL.set(buffer);
+                }
+            }
+        }
+        return new RequestBody(buffer, length);
+    }
+
+    // the pooled buffer grown to fit, or a one-off buffer above the pooled size
+    private static byte[] buffer(int size) {
+        byte[] pooled = POOL.get();
+        if (size <= pooled.length) {
+            return pooled;
+        }
+        if (size > MAX_POOLED_BYTES) {
+            return new byte[size];
+        }
+        byte[] grown = new byte[Math.min(MAX_POOLED_BYTES, Math.max(size, pooled.length << 1))];
+        POOL.set(grown);
+        return grown;
+    }
+
+    // -1 when the body is chunked or the header is malformed
+    private static long contentLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.EnergySavingBanking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content addressed cache of serialized responses, keyed by a 64 bit hash of
+ * the request body. The body itself is kept with the entry and compared on a
+ * hit, so a hash collision can never return someone else's response.
+ * Entries are evicted least recently used first once cache.maxBytes is taken.
+ * A doorkeeper of recently seen hashes admits a body only on its second
+ * sighting, one-off requests never push out the ones clients keep resending.
+ * Only for handlers whose response depends on nothing but the request body.
+ */
+public final class ResponseCache {
+
+    private static final long MAX_BYTES = ApplicationProperties.getLong("cache.maxBytes", 64L * 1024 * 1024);
+    private static final Set<String> ENDPOINTS = Set.copyOf(Arrays.asList(
+            ApplicationProperties.getString("cache.endpoints", "").split("\\s*,\\s*")));
+    private static final ResponseCache SHARED = new ResponseCache(MAX_BYTES);
+
+    private static final int DOORKEEPER_SIZE = 4096;
+    // key, entry and map node overhead
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private final long maxBytes;
+    private final Map<Key, CachedResponse> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final long[] recentlySeen = new long[DOORKEEPER_SIZE];
+    private long usedBytes;
+
+    ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cache for the endpoint, or null if caching is not enabled for it
+     */
+    public static ResponseCache forEndpoint(String endpoint) {
+        return MAX_BYTES > 0 && ENDPOINTS.contains(endpoint) ? SHARED : null;
+    }
+
+    /**
+     * Key of the first length bytes of the body, they are copied only once the key is put.
+     */
+    public static Key key(String endpoint, boolean binary, byte[] requestBody, int length) {
+        return new Key(endpoint, binary, requestBody, length, hash(requestBody, length));
+    }
+
+    // largest response worth keeping, bigger ones would flush most of the cache
+    public int maxResponseBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, maxBytes >> 3);
+    }
+
+    public synchronized CachedResponse get(Key key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Records the key in the doorkeeper.
+     *
+     * @return true if the same hash was seen recently, the response is worth caching
+     */
+    public synchronized boolean admit(Key key) {
+        int slot = (int) (key.hash ^ (key.hash >>> 32)) & (DOORKEEPER_SIZE - 1);
+        if (recentlySeen[slot] == key.hash) {
+            return true;
+        }
+        recentlySeen[slot] = key.hash;
+        return false;
+    }
+
+    public synchronized void put(Key key, String contentType, byte[] response) {
+        CachedResponse cachedResponse = new CachedResponse(contentType, response);
+        long size = key.length + response.length + ENTRY_OVERHEAD;
+        if (size > maxBytes) {
+            return;
+        }
+        // the request body may sit in a pooled buffer
+        Key ownKey = new Key(key.endpoint, key.binary, Arrays.copyOf(key.requestBody, key.length), key.length,
+                key.hash);
+        CachedResponse previous = entries.remove(ownKey);
+        if (previous != null) {
+            usedBytes -= key.length + previous.body.length + ENTRY_OVERHEAD;
+        }
+        entries.put(ownKey, cachedResponse);
+        usedBytes += size;
+        Iterator<Map.Entry<Key, CachedResponse>> eldest = entries.entrySet().iterator();
+        while (usedBytes > maxBytes) {
+            Map.Entry<Key, CachedResponse> entry = eldest.next();
+            usedBytes -= entry.getKey().length + entry.getValue().body.length + ENTRY_OVERHEAD;
+            eldest.remove();
+        }
+    }
+
+    // single lane variant of xxHash64 over little endian 8 byte words
+    private static long hash(byte[] bytes, int length) {
+        long hash = 0x27D4EB2F165667C5L + length;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long word = (long) LONG_VIEW.get(bytes, i) * 0xC2B2AE3D27D4EB4FL;
+            hash ^= Long.rotateLeft(word, 31) * 0x9E3779B185EBCA87L;
+            hash = Long.rotateLeft(hash, 27) * 0x9E3779B185EBCA87L + 0x85EBCA77C2B2AE63L;
+        }
+        for (; i < length; i++) {
+            hash ^= (bytes[i] & 0xFFL) * 0x27D4EB2F165667C5L;
+            hash = Long.rotateLeft(hash, 11) * 0x9E3779B185EBCA87L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xC2B2AE3D27D4EB4FL;
+        hash ^= hash >>> 29;
+        hash *= 0x165667B19E3779F9L;
+        return hash ^ (hash >>> 32);
+    }
+
+    public static final class Key {
+        private final String endpoint;
+        private final boolean binary;
+        private final byte[] requestBody;
+        private final int length;
+        private final long hash;
+
+        private Key(String endpoint, boolean binary, byte[] requestBody, int length, long hash) {
+            this.endpoint = endpoint;
+            this.binary = binary;
+            this.requestBody = requestBody;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && binary == key.binary && endpoint.equals(key.endpoint)
+                    && Arrays.equals(requestBody, 0, length, key.requestBody, 0, key.length);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash;
+        }
+    }
+
+    public static final class CachedResponse {
+        private final String contentType;
+        private final byte[] body;
+
+        private CachedResponse(String contentType, byte[] body) {
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Passes the response through while keeping a copy, gives up copying past maxBytes.
+     */
+    public static final class ResponseCapture extends FilterOutputStream {
+        private final int maxBytes;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        public ResponseCapture(OutputStream output, int maxBytes) {
+            super(output);
+            this.maxBytes = maxBytes;
+        }
+
+        // the whole response, or null if it was too big
+        public byte[] toByteArray() {
+            return copy == null ? null : copy.toByteArray();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            keep(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            keep(buffer, offset, length);
+        }
+
+        private void keep(byte[] buffer, int offset, int length) {
+            if (copy == null) {
+                return;
+            }
+            if (copy.size() + length > maxBytes) {
+                copy = null;
+                return;
+            }
+            copy.write(buffer, offset, length);
+        }
+    }
+}
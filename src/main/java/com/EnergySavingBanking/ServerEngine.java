@@ -0,0 +1,158 @@
+package com.EnergySavingBanking;
+
+import com.EnergySavingBanking.metrics.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which threads run the handlers, picked at startup with server.engine:
+ * <ul>
+ * <li>DISPATCHER - the HttpServer dispatcher thread runs every request itself,
+ * one request at a time, no thread handoff at all</li>
+ * <li>VIRTUAL_THREADS - a virtual thread per request, needs a JDK with
+ * Executors.newVirtualThreadPerTaskExecutor, otherwise BOUNDED is used</li>
+ * <li>BOUNDED - every endpoint has its own fixed pool with a bounded queue,
+ * requests that don't fit in the queue are answered with 503 right away</li>
+ * <li>SCHEDULED - one pool for all endpoints, cheap requests overtake expensive
+ * ones and requests that would miss their deadline get 503, see AdmissionScheduler</li>
+ * </ul>
+ * Work handlers split further (transaction shards) goes to the compute pool,
+ * which is fixed to the number of cores in every mode.
+ */
+public final class ServerEngine {
+
+    public enum Mode {
+        DISPATCHER, VIRTUAL_THREADS, BOUNDED, SCHEDULED
+    }
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final String SERVER_BUSY_MESSAGE = "Server busy, try again later";
+
+    private Mode mode;
+    private final int boundedThreads;
+    private final int boundedQueueCapacity;
+    private final ExecutorService computeExecutor;
+    private final AdmissionScheduler scheduler;
+
+    public ServerEngine(Mode mode, int boundedThreads, int boundedQueueCapacity) {
+        this(mode, boundedThreads, boundedQueueCapacity, 0, 0);
+    }
+
+    public ServerEngine(Mode mode, int boundedThreads, int boundedQueueCapacity, int scheduledQueueCapacity,
+                        long scheduledDeadlineMillis) {
+        this.mode = mode;
+        this.boundedThreads = boundedThreads > 0 ? boundedThreads : CORES;
+        this.boundedQueueCapacity = boundedQueueCapacity;
+        this.scheduler = mode == Mode.SCHEDULED
+                ? new AdmissionScheduler(this.boundedThreads, scheduledQueueCapacity, scheduledDeadlineMillis)
+                : null;
+        ThreadPoolExecutor computeExecutor = new ThreadPoolExecutor(CORES, CORES, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory("compute"));
+        Metrics.registerExecutor("compute", computeExecutor);
+        this.computeExecutor = computeExecutor;
+    }
+
+    public static ServerEngine fromProperties() {
+        String mode = ApplicationProperties.getString("server.engine", Mode.DISPATCHER.name());
+        return new ServerEngine(Mode.valueOf(mode.toUpperCase(Locale.ROOT)),
+                ApplicationProperties.getInt("server.bounded.threads", 0),
+                ApplicationProperties.getInt("server.bounded.queueCapacity", 64),
+                ApplicationProperties.getInt("server.scheduled.queueCapacity", 256),
+                ApplicationProperties.getLong("server.scheduled.deadlineMillis", 3000));
+    }
+
+    /**
+     * Pool for work the handlers fan out within a request.
+     */
+    public ExecutorService computeExecutor() {
+        return computeExecutor;
+    }
+
+    /**
+     * Sets the server executor, must be called before any context is created.
+     */
+    public void configure(HttpServer server) {
+        if (mode == Mode.VIRTUAL_THREADS) {
+            ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+            if (virtualThreads != null) {
+                server.setExecutor(virtualThreads);
+                return;
+            }
+            System.err.println("Virtual threads are not available on this JDK, using " + Mode.BOUNDED);
+            mode = Mode.BOUNDED;
+        }
+        // DISPATCHER, BOUNDED and SCHEDULED keep the default executor, handlers run on the dispatcher
+        server.setExecutor(null);
+    }
+
+    public void createContext(HttpServer server, String path, AbstractHandler handler) {
+        if (mode == Mode.SCHEDULED) {
+            server.createContext(path, scheduler.handler(path, handler));
+            return;
+        }
+        if (mode != Mode.BOUNDED) {
+            server.createContext(path, handler);
+            return;
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(boundedThreads, boundedThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(boundedQueueCapacity), threadFactory(path.substring(1).replace('/', '-')));
+        Metrics.registerExecutor(path, pool);
+        server.createContext(path, boundedHandler(path, handler, pool));
+    }
+
+    private static HttpHandler boundedHandler(String path, AbstractHandler handler, ThreadPoolExecutor pool) {
+        return exchange -> {
+            try {
+                pool.execute(() -> handleOnPool(handler, exchange));
+            } catch (RejectedExecutionException e) {
+                if (Metrics.ENABLED) {
+                    Metrics.endpoint(path).responseSent(503);
+                }
+                // unread, a big body makes HttpServer reset the connection instead of sending the 503
+                RequestBody.discardRest(exchange);
+                handler.sendErrorResponse(exchange, 503, SERVER_BUSY_MESSAGE);
+            }
+        };
+    }
+
+    // the dispatcher is not there to close the exchange when a pooled handler fails
+    static void handleOnPool(AbstractHandler handler, HttpExchange exchange) {
+        try {
+            handler.handle(exchange);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            exchange.close();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // JDK 17, or the preview API of JDK 19 and 20 without --enable-preview
+            return null;
+        }
+    }
+
+    static ThreadFactory threadFactory(String name) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,268 @@
+package com.EnergySavingBanking.atmservice;
+
+import java.util.Arrays;
+
+/**
+ * Linear time order engine working on the packed task ints.
+ * There is one bucket per (region, requestType) pair, 9999 x 4 of them, kept
+ * as intrusive doubly linked lists over flat int arrays. Every ATM has a single
+ * entry whose bucket also holds its best request type so far, an upgrade
+ * unlinks the entry in O(1) and appends it to the better bucket.
+ * A bitmap of non-empty buckets gives the (region, requestType) order
+ * without sorting. Entry index 0 is the null link, so fresh arrays need no filling.
+ * Bucket heads and tails live in blocks of 64 buckets, one per bitmap word,
+ * allocated when a bucket of the block is first used, so an engine costs
+ * memory for the regions present rather than for all of them.
+ */
+class AtmOrderEngine {
+    private static final int BUCKET_COUNT = (AtmTask.REGION_MAX + 1) << AtmTask.REQUEST_TYPE_BIT_LENGTH;
+    private static final int NONE = 0;
+    // a block holds the heads of its 64 buckets followed by their tails
+    private static final int BLOCK_BITS = 6;
+    private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+    private static final int TAILS = 1 << BLOCK_BITS;
+
+    private final int[][] bucketBlocks = new int[(BUCKET_COUNT >>> BLOCK_BITS) + 1][];
+    private final long[] nonEmptyBuckets = new long[(BUCKET_COUNT >>> 6) + 1];
+
+    private int[] entryAtms;
+    private int[] entryBuckets;
+    private int[] previous;
+    private int[] next;
+    private int size;
+
+    // open addressing map from ATM (region and atmId) to its entry
+    private int[] atmKeys;
+    private int[] atmEntries;
+
+    AtmOrderEngine(int expectedAtms) {
+        int capacity = Math.max(expectedAtms, 16) + 1;
+        entryAtms = new int[capacity];
+        entryBuckets = new int[capacity];
+        previous = new int[capacity];
+        next = new int[capacity];
+        int tableSize = Integer.highestOneBit(Math.max(expectedAtms, 16) << 1) << 1;
+        atmKeys = new int[tableSize];
+        atmEntries = new int[tableSize];
+    }
+
+    /**
+     * Adds a task, an ATM already scheduled with the same or more important
+     * request type is left where it is.
+     *
+     * @return true if the order changed
+     */
+    public boolean add(int task) {
+        int atm = AtmTask.getATMUnique(task);
+        int bucket = AtmTask.getPriority(task);
+        int entry = findEntry(atm);
+        if (entry == NONE) {
+            entry = newEntry(atm);
+        } else if (entryBuckets[entry] >= 0) {
+            // a negative bucket means the ATM was removed and is scheduled again
+            if ((bucket & AtmTask.REQUEST_TYPE_BITMASK) >= (entryBuckets[entry] & AtmTask.REQUEST_TYPE_BITMASK)) {
+                return false;
+            }
+            unlink(entry);
+        }
+        append(entry, bucket);
+        return true;
+    }
+
+    /**
+     * Removes the ATM (region and atmId, see AtmTask.getATMUnique) from the order.
+     *
+     * @return the bucket the ATM was in, or -1 if it was not scheduled
+     */
+    public int remove(int atm) {
+        int entry = findEntry(atm);
+        if (entry == NONE || entryBuckets[entry] < 0) {
+            return -1;
+        }
+        int bucket = entryBuckets[entry];
+        unlink(entry);
+        // the entry and its map slot are kept, the ATM can be scheduled again
+        entryBuckets[entry] = -1;
+        return bucket;
+    }
+
+    // bucket of a scheduled ATM, or -1
+    public int bucketOf(int atm) {
+        int entry = findEntry(atm);
+        return entry == NONE ? -1 : entryBuckets[entry];
+    }
+
+    /**
+     * @return scheduled ATMs (region and atmId, see AtmTask.getATMUnique) in route order
+     */
+    public int[] order() {
+        int[] order = new int[size];
+        int count = 0;
+        for (int bucket = nextBucket(0); bucket >= 0; bucket = nextBucket(bucket + 1)) {
+            count = appendBucket(bucket, order, count);
+        }
+        return Arrays.copyOf(order, count);
+    }
+
+    /**
+     * @return regions with scheduled ATMs, ascending
+     */
+    public int[] regions() {
+        int[] regions = new int[16];
+        int count = 0;
+        for (int bucket = nextBucket(0); bucket >= 0; bucket = nextBucket(bucket + 1)) {
+            int region = bucket >>> AtmTask.REQUEST_TYPE_BIT_LENGTH;
+            if (count > 0 && regions[count - 1] == region) {
+                continue;
+            }
+            if (count == regions.length) {
+                regions = Arrays.copyOf(regions, count << 1);
+            }
+            regions[count++] = region;
+        }
+        return Arrays.copyOf(regions, count);
+    }
+
+    /**
+     * @return scheduled ATMs of the region in route order
+     */
+    public int[] regionOrder(int region) {
+        int firstBucket = region << AtmTask.REQUEST_TYPE_BIT_LENGTH;
+        int lastBucket = firstBucket + (1 << AtmTask.REQUEST_TYPE_BIT_LENGTH);
+        int regionSize = 0;
+        for (int bucket = firstBucket; bucket < lastBucket; bucket++) {
+            for (int entry = head(bucket); entry != NONE; entry = next[entry]) {
+                regionSize++;
+            }
+        }
+        int[] order = new int[regionSize];
+        int count = 0;
+        for (int bucket = firstBucket; bucket < lastBucket; bucket++) {
+            count = appendBucket(bucket, order, count);
+        }
+        return order;
+    }
+
+    private int appendBucket(int bucket, int[] order, int count) {
+        for (int entry = head(bucket); entry != NONE; entry = next[entry]) {
+            order[count++] = entryAtms[entry];
+        }
+        return count;
+    }
+
+    private int nextBucket(int fromBucket) {
+        int word = fromBucket >>> 6;
+        if (word >= nonEmptyBuckets.length) {
+            return -1;
+        }
+        long bits = nonEmptyBuckets[word] & (-1L << (fromBucket & 63));
+        while (bits == 0) {
+            if (++word == nonEmptyBuckets.length) {
+                return -1;
+            }
+            bits = nonEmptyBuckets[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    private int head(int bucket) {
+        int[] block = bucketBlocks[bucket >>> BLOCK_BITS];
+        return block == null ? NONE : block[bucket & BLOCK_MASK];
+    }
+
+    private void append(int entry, int bucket) {
+        int[] block = bucketBlocks[bucket >>> BLOCK_BITS];
+        if (block == null) {
+            block = bucketBlocks[bucket >>> BLOCK_BITS] = new int[TAILS << 1];
+        }
+        int index = bucket & BLOCK_MASK;
+        int tail = block[TAILS + index];
+        entryBuckets[entry] = bucket;
+        previous[entry] = tail;
+        next[entry] = NONE;
+        if (tail == NONE) {
+            block[index] = entry;
+            nonEmptyBuckets[bucket >>> 6] |= 1L << bucket;
+        } else {
+            next[tail] = entry;
+        }
+        block[TAILS + index] = entry;
+    }
+
+    // the entry is linked, so its block exists
+    private void unlink(int entry) {
+        int bucket = entryBuckets[entry];
+        int[] block = bucketBlocks[bucket >>> BLOCK_BITS];
+        int index = bucket & BLOCK_MASK;
+        int before = previous[entry];
+        int after = next[entry];
+        if (before == NONE) {
+            block[index] = after;
+        } else {
+            next[before] = after;
+        }
+        if (after == NONE) {
+            block[TAILS + index] = before;
+        } else {
+            previous[after] = before;
+        }
+        if (block[index] == NONE) {
+            nonEmptyBuckets[bucket >>> 6] &= ~(1L << bucket);
+        }
+    }
+
+    private int findEntry(int atm) {
+        int mask = atmKeys.length - 1;
+        for (int index = hash(atm) & mask; atmEntries[index] != NONE; index = (index + 1) & mask) {
+            if (atmKeys[index] == atm) {
+                return atmEntries[index];
+            }
+        }
+        return NONE;
+    }
+
+    private int newEntry(int atm) {
+        int entry = ++size;
+        if (entry == entryAtms.length) {
+            int capacity = entryAtms.length << 1;
+            entryAtms = Arrays.copyOf(entryAtms, capacity);
+            entryBuckets = Arrays.copyOf(entryBuckets, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+        entryAtms[entry] = atm;
+        // keep the load factor at or below 1/2
+        if (size << 1 > atmKeys.length) {
+            rehash();
+        }
+        insertKey(atmKeys, atmEntries, atm, entry);
+        return entry;
+    }
+
+    private void rehash() {
+        int[] newKeys = new int[atmKeys.length << 1];
+        int[] newEntries = new int[atmKeys.length << 1];
+        for (int index = 0; index < atmKeys.length; index++) {
+            if (atmEntries[index] != NONE) {
+                insertKey(newKeys, newEntries, atmKeys[index], atmEntries[index]);
+            }
+        }
+        atmKeys = newKeys;
+        atmEntries = newEntries;
+    }
+
+    private static void insertKey(int[] keys, int[] entries, int atm, int entry) {
+        int mask = keys.length - 1;
+        int index = hash(atm) & mask;
+        while (entries[index] != NONE) {
+            index = (index + 1) & mask;
+        }
+        keys[index] = atm;
+        entries[index] = entry;
+    }
+
+    private static int hash(int atm) {
+        int hash = atm * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,160 @@
+package com.EnergySavingBanking.atmservice;
+
+import com.EnergySavingBanking.AbstractHandler;
+import com.EnergySavingBanking.ApplicationProperties;
+import com.EnergySavingBanking.JsonResponseWriter;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stateful variant of /atms/calculateOrder keeping the route order of every
+ * routeId in memory, so crews send only what changed:
+ * <pre>
+ * {
+ *   "routeId": "crew-7",
+ *   "reset": false,
+ *   "completed": [{"region": 1, "atmId": 2}],
+ *   "tasks": [{"region": 1, "requestType": "FAILURE_RESTART", "atmId": 3}],
+ *   "changedOnly": true
+ * }
+ * </pre>
+ * "tasks" adds or upgrades ATMs with the same rules as the batch endpoint,
+ * "completed" removes them and is applied first. The response has the
+ * calculateOrder format with the whole order. With "changedOnly" it lists
+ * only the regions touched by this delta, which keeps the cost proportional
+ * to the delta, each with its whole new order, empty for a region that was
+ * completed or reset away:
+ * <pre>
+ * [{"region": 1, "order": [{"region": 1, "atmId": 3}]}, {"region": 4, "order": []}]
+ * </pre>
+ * Sessions idle for longer than atm.routes.sessionTtlSeconds are dropped,
+ * a new routeId beyond atm.routes.maxSessions is answered with 503.
+ */
+public class AtmRouteHandler extends AbstractHandler {
+
+    private static final String INVALID_ROUTE_ID_MESSAGE = "Invalid routeId value";
+    private static final String TOO_MANY_ROUTES_MESSAGE = "Too many active routes";
+
+    private static final long SESSION_TTL_NANOS = TimeUnit.SECONDS.toNanos(
+            ApplicationProperties.getLong("atm.routes.sessionTtlSeconds", 3600));
+    private static final int MAX_SESSIONS = ApplicationProperties.getInt("atm.routes.maxSessions", 256);
+    private static final int[] NO_ATMS = new int[0];
+    // {"region":1234,"order":[]},
+    private static final int ESTIMATED_REGION_JSON_SIZE = 28;
+
+    private final Map<String, AtmRouteSession> sessions = new ConcurrentHashMap<>();
+    // slots are reserved here before a session is created, so racing new routes can't pass the cap
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    public AtmRouteHandler(ExecutorService executorService) {
+        super(executorService);
+    }
+
+    @Override
+    protected void processRequestData(String requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException {
+        JsonResponseWriter jsonResponse;
+        try {
+            JsonObject jsonObject = JsonParser.parseString(requestBody).getAsJsonObject();
+
+            JsonElement routeId = jsonObject.get("routeId");
+            if (routeId == null || !routeId.isJsonPrimitive() || routeId.getAsString().isEmpty()) {
+                throw new IllegalArgumentException(INVALID_ROUTE_ID_MESSAGE);
+            }
+            boolean reset = jsonObject.has("reset") && jsonObject.get("reset").getAsBoolean();
+            boolean changedOnly = jsonObject.has("changedOnly") && jsonObject.get("changedOnly").getAsBoolean();
+            int[] completedAtms = jsonObject.has("completed")
+                    ? parseAtms(jsonObject.getAsJsonArray("completed")) : NO_ATMS;
+            int[] tasks = jsonObject.has("tasks")
+                    ? AtmServiceHandler.parseTasks(jsonObject.getAsJsonArray("tasks")) : NO_ATMS;
+
+            markParsed();
+
+            AtmRouteSession session = getSession(routeId.getAsString());
+            if (session == null) {
+                // the server is out of sessions, not the request at fault
+                sendErrorResponse(exchange, 503, TOO_MANY_ROUTES_MESSAGE);
+                return;
+            }
+            int[] changedRegions = session.apply(reset, completedAtms, tasks);
+            if (changedOnly) {
+                int[][] regionOrders = session.order(changedRegions);
+                markComputed();
+                jsonResponse = createChangedRegionsResponse(changedRegions, regionOrders);
+            } else {
+                int[] order = session.order();
+                markComputed();
+                jsonResponse = AtmServiceHandler.createJsonResponse(order);
+            }
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, e.getMessage());
+            return;
+        }
+
+        sendJsonResponse(exchange, jsonResponse);
+    }
+
+    private static JsonResponseWriter createChangedRegionsResponse(int[] regions, int[][] regionOrders)
+            throws IOException {
+        int atmCount = 0;
+        for (int[] regionOrder : regionOrders) {
+            atmCount += regionOrder.length;
+        }
+        JsonResponseWriter jsonResponse = JsonResponseWriter.buffered(
+                regions.length * ESTIMATED_REGION_JSON_SIZE + atmCount * AtmServiceHandler.ESTIMATED_ATM_JSON_SIZE + 2);
+        jsonResponse.beginArray();
+        for (int i = 0; i < regions.length; i++) {
+            jsonResponse.beginObject().name("region").value(regions[i]).name("order");
+            AtmServiceHandler.writeOrder(regionOrders[i], jsonResponse).endObject();
+        }
+        return jsonResponse.endArray();
+    }
+
+    private static int[] parseAtms(JsonArray jsonArray) throws IllegalArgumentException {
+        int[] atms = new int[jsonArray.size()];
+        int atmCount = 0;
+        for (JsonElement jsonElement : jsonArray) {
+            JsonObject jsonObject = jsonElement.getAsJsonObject();
+            int region = AtmServiceHandler.parseRegion(jsonObject);
+            int atmId = AtmServiceHandler.parseAtmId(jsonObject);
+            atms[atmCount++] = AtmTask.getATMUnique(AtmTask.encodeTask(region, 0, atmId));
+        }
+        return atms;
+    }
+
+    // null when a new session would exceed atm.routes.maxSessions
+    private AtmRouteSession getSession(String routeId) {
+        AtmRouteSession session = sessions.get(routeId);
+        if (session != null) {
+            return session;
+        }
+        long expiredBefore = System.nanoTime() - SESSION_TTL_NANOS;
+        for (Map.Entry<String, AtmRouteSession> entry : sessions.entrySet()) {
+            if (entry.getValue().isIdleSince(expiredBefore) && sessions.remove(entry.getKey(), entry.getValue())) {
+                sessionCount.decrementAndGet();
+            }
+        }
+        if (sessionCount.incrementAndGet() > MAX_SESSIONS) {
+            sessionCount.decrementAndGet();
+            // another request may have just created this route
+            return sessions.get(routeId);
+        }
+        AtmRouteSession newSession = new AtmRouteSession();
+        session = sessions.putIfAbsent(routeId, newSession);
+        if (session != null) {
+            sessionCount.decrementAndGet();
+            return session;
+        }
+        return newSession;
+    }
+}
@@ -0,0 +1,72 @@
+package com.EnergySavingBanking.atmservice;
+
+import java.util.Arrays;
+
+/**
+ * Current route order of one service crew, updated with deltas.
+ * Adding, upgrading or completing an ATM costs O(1) in AtmOrderEngine,
+ * so a delta is applied in time proportional to its size.
+ */
+class AtmRouteSession {
+    private static final int EXPECTED_ATMS = 1024;
+    private static final int[] NO_REGIONS = new int[0];
+
+    private AtmOrderEngine orderEngine = new AtmOrderEngine(EXPECTED_ATMS);
+    private volatile long lastAccessNanos = System.nanoTime();
+
+    /**
+     * Applies a reset, then completions and then new or upgraded tasks.
+     *
+     * @return regions whose order changed, ascending, a reset changes every region it empties
+     */
+    public synchronized int[] apply(boolean reset, int[] completedAtms, int[] tasks) {
+        lastAccessNanos = System.nanoTime();
+        int[] droppedRegions = NO_REGIONS;
+        if (reset) {
+            droppedRegions = orderEngine.regions();
+            orderEngine = new AtmOrderEngine(Math.max(EXPECTED_ATMS, tasks.length));
+        }
+
+        int[] changedRegions = new int[droppedRegions.length + completedAtms.length + tasks.length];
+        System.arraycopy(droppedRegions, 0, changedRegions, 0, droppedRegions.length);
+        int changedCount = droppedRegions.length;
+        for (int atm : completedAtms) {
+            if (orderEngine.remove(atm) >= 0) {
+                changedRegions[changedCount++] = AtmTask.decodeUniqueRegion(atm);
+            }
+        }
+        for (int task : tasks) {
+            if (orderEngine.add(task)) {
+                changedRegions[changedCount++] = AtmTask.decodeUniqueRegion(AtmTask.getATMUnique(task));
+            }
+        }
+
+        Arrays.sort(changedRegions, 0, changedCount);
+        int distinctCount = 0;
+        for (int i = 0; i < changedCount; i++) {
+            if (distinctCount == 0 || changedRegions[distinctCount - 1] != changedRegions[i]) {
+                changedRegions[distinctCount++] = changedRegions[i];
+            }
+        }
+        return Arrays.copyOf(changedRegions, distinctCount);
+    }
+
+    public synchronized int[] order() {
+        return orderEngine.order();
+    }
+
+    /**
+     * @return ATMs of every given region in route order, empty for a region without any
+     */
+    public synchronized int[][] order(int[] regions) {
+        int[][] regionOrders = new int[regions.length][];
+        for (int i = 0; i < regions.length; i++) {
+            regionOrders[i] = orderEngine.regionOrder(regions[i]);
+        }
+        return regionOrders;
+    }
+
+    public boolean isIdleSince(long nanos) {
+        return lastAccessNanos - nanos < 0;
+    }
+}
@@ -1,15 +1,20 @@
 package com.EnergySavingBanking.atmservice;
 
 import com.EnergySavingBanking.AbstractHandler;
+import com.EnergySavingBanking.BatchItemHandler;
+import com.EnergySavingBanking.BinaryCodec;
+import com.EnergySavingBanking.JsonBytes;
+import com.EnergySavingBanking.JsonResponseWriter;
+import com.EnergySavingBanking.ParallelArrayDecoder;
+import com.EnergySavingBanking.RequestBody;
 import com.sun.net.httpserver.HttpExchange;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 
@@ -18,24 +23,23 @@ import java.util.concurrent.ExecutorService;
  * due to memory and CPU time optimalization
  * Usage of integers allows to use CPU cache more efficient
  * bitwise operations are quickier as well
- * No concurrency used because it wouldn't improve sorting  
+ * Order is built by AtmOrderEngine in linear time, without boxing, on the request thread
+ * Large task lists are validated and packed in parallel straight from the
+ * request bytes, see ParallelArrayDecoder, Gson is only the fallback
  */
-public class AtmServiceHandler extends AbstractHandler {
+public class AtmServiceHandler extends AbstractHandler implements BatchItemHandler<int[], int[]> {
 
     public AtmServiceHandler(ExecutorService executorService) {
         super(executorService);
     }
 
     // Restrictions from schema
-    private static final int REGION_MIN = 1;
-    private static final int REGION_MAX = 9999;
-    private static final int ATM_ID_MIN = 1;
-    private static final int ATM_ID_MAX = 9999;
-    private static final int ATM_ID_BITMASK = 0x3FFF;
-    private static final int ATM_REGION_BITMASK = 0x3FFF;
-    private static final int REQUEST_TYPE_BITMASK = 0x3;
-    private static final int ATM_ID_BIT_LENGTH = 14;
-    private static final int REQUEST_TYPE_BIT_LENGTH = 2;
+    private static final int REGION_MIN = AtmTask.REGION_MIN;
+    private static final int REGION_MAX = AtmTask.REGION_MAX;
+    private static final int ATM_ID_MIN = AtmTask.ATM_ID_MIN;
+    private static final int ATM_ID_MAX = AtmTask.ATM_ID_MAX;
+    // {"region":9999,"atmId":9999},
+    static final int ESTIMATED_ATM_JSON_SIZE = 29;
 
     private static final String INVALID_REGION_MESSAGE = "Invalid region value";
     private static final String INVALID_REQUEST_TYPE_MESSAGE = "Invalid requestType value";
@@ -48,39 +52,126 @@ public class AtmServiceHandler extends AbstractHandler {
             "STANDARD", 3);
 
     private static final List<String> REQUEST_TYPES = new ArrayList<>(priorityMapping.keySet());
+    private static final byte[][] TASK_KEYS = JsonBytes.utf8("region", "requestType", "atmId");
+    // indexed by priority
+    private static final byte[][] REQUEST_TYPE_NAMES = JsonBytes.utf8(
+            "FAILURE_RESTART", "PRIORITY", "SIGNAL_LOW", "STANDARD");
+
+    @Override
+    protected void processJsonRequest(RequestBody requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException, InterruptedException {
+        int[] tasks = ParallelArrayDecoder.decode(requestBody.bytes(), 0, requestBody.length(),
+                AtmServiceHandler::decodeTask, executorService);
+        if (tasks == null) {
+            // the Gson path reports errors as it always did
+            super.processJsonRequest(requestBody, exchange);
+            return;
+        }
+        markParsed();
+        sendOrder(tasks, exchange);
+    }
 
     @Override
     protected void processRequestData(String requestBody, HttpExchange exchange)
             throws IOException, IllegalArgumentException, InterruptedException {
-        List<Integer> tasks;
+        int[] tasks;
         try {
             tasks = parseTasksFromJson(requestBody);
         } catch (IllegalArgumentException e) {
             sendErrorResponse(exchange, e.getMessage());
             return;
         }
+        markParsed();
+        sendOrder(tasks, exchange);
+    }
 
-        String jsonResponse = createJsonResponse(calculateOrder(tasks));
+    private void sendOrder(int[] tasks, HttpExchange exchange) throws IOException {
+        int[] order = calculateOrder(tasks);
+        markComputed();
+        JsonResponseWriter jsonResponse = createJsonResponse(order);
         sendJsonResponse(exchange, jsonResponse);
     }
 
-    private List<Integer> parseTasksFromJson(String json) throws IllegalArgumentException {
-        List<Integer> tasks = new ArrayList<>();
-
-        JsonArray jsonArray = JsonParser.parseString(json).getAsJsonArray();
-
-        for (JsonElement jsonElement : jsonArray) {
-            JsonObject jsonObject = jsonElement.getAsJsonObject();
+    /**
+     * Binary layout, see BinaryCodec:
+     * request int32 count, count x int32 task packed as in AtmTask.encodeTask;
+     * response int32 count, count x int32 region and atmId packed as in AtmTask.getATMUnique.
+     */
+    @Override
+    protected void processBinaryRequest(ByteBuffer requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException {
+        int[] tasks = parseTasksFromBinary(requestBody);
+        markParsed();
+        int[] order = calculateOrder(tasks);
+        markComputed();
+
+        ByteBuffer response = BinaryCodec.allocate(Integer.BYTES * (order.length + 1));
+        response.putInt(order.length);
+        for (int atmUnique : order) {
+            response.putInt(atmUnique);
+        }
+        sendBinaryResponse(exchange, response);
+    }
 
-            int region = jsonObject.get("region").getAsInt();
+    private static int[] parseTasksFromBinary(ByteBuffer requestBody) throws IllegalArgumentException {
+        int[] tasks = new int[BinaryCodec.readLength(requestBody, Integer.BYTES)];
+        for (int i = 0; i < tasks.length; i++) {
+            int task = requestBody.getInt();
+            // region takes all bits above requestType, so anything out of range shows up here
+            int region = task >>> (AtmTask.ATM_ID_BIT_LENGTH + AtmTask.REQUEST_TYPE_BIT_LENGTH);
             if (region < REGION_MIN || region > REGION_MAX) {
                 throw new IllegalArgumentException(INVALID_REGION_MESSAGE);
             }
-
-            int atmId = jsonObject.get("atmId").getAsInt();
+            int atmId = task & AtmTask.ATM_ID_BITMASK;
             if (atmId < ATM_ID_MIN || atmId > ATM_ID_MAX) {
                 throw new IllegalArgumentException(INVALID_ATM_ID_MESSAGE);
             }
+            tasks[i] = task;
+        }
+        return tasks;
+    }
+
+    // fast path decoder, valid tasks in the plain JSON shape only
+    private static int decodeTask(JsonBytes element) {
+        int region = 0;
+        int requestType = 0;
+        int atmId = 0;
+        int seenKeys = 0;
+        element.expect('{');
+        do {
+            int key = element.nextKey(TASK_KEYS);
+            if ((seenKeys & 1 << key) != 0) {
+                throw JsonBytes.UNSUPPORTED;
+            }
+            seenKeys |= 1 << key;
+            switch (key) {
+                case 0 -> region = element.nextInt();
+                case 1 -> requestType = element.nextString(REQUEST_TYPE_NAMES);
+                default -> atmId = element.nextInt();
+            }
+        } while (element.consume(','));
+        element.expect('}');
+
+        if (seenKeys != (1 << TASK_KEYS.length) - 1 || region < REGION_MIN || region > REGION_MAX
+                || atmId < ATM_ID_MIN || atmId > ATM_ID_MAX) {
+            throw JsonBytes.UNSUPPORTED;
+        }
+        return AtmTask.encodeTask(region, requestType, atmId);
+    }
+
+    private int[] parseTasksFromJson(String json) throws IllegalArgumentException {
+        return parseTasks(JsonParser.parseString(json).getAsJsonArray());
+    }
+
+    static int[] parseTasks(JsonArray jsonArray) throws IllegalArgumentException {
+        int[] tasks = new int[jsonArray.size()];
+        int taskCount = 0;
+
+        for (JsonElement jsonElement : jsonArray) {
+            JsonObject jsonObject = jsonElement.getAsJsonObject();
+
+            int region = parseRegion(jsonObject);
+            int atmId = parseAtmId(jsonObject);
 
             String requestTypeString = jsonObject.get("requestType").getAsString();
             if (!REQUEST_TYPES.contains(requestTypeString)) {
@@ -88,91 +179,69 @@ public class AtmServiceHandler extends AbstractHandler {
             }
             int requestType = priorityMapping.get(requestTypeString);
 
-            tasks.add(encodeTask(region, requestType, atmId));
+            tasks[taskCount++] = AtmTask.encodeTask(region, requestType, atmId);
         }
 
         return tasks;
     }
 
-    // it's region and atmId
-    private static int getATMUnique(int taskInteger) {
-        int region = (taskInteger >>> (ATM_ID_BIT_LENGTH + REQUEST_TYPE_BIT_LENGTH)) & ATM_ID_BITMASK;
-        int atmId = taskInteger & ATM_ID_BITMASK;
-        return (region << ATM_ID_BIT_LENGTH) | atmId;
+    static int parseRegion(JsonObject jsonObject) throws IllegalArgumentException {
+        int region = jsonObject.get("region").getAsInt();
+        if (region < REGION_MIN || region > REGION_MAX) {
+            throw new IllegalArgumentException(INVALID_REGION_MESSAGE);
+        }
+        return region;
     }
 
-    // it's region and request type
-    private static int getPriority(int taskInteger) {
-        int region = (taskInteger >>> (ATM_ID_BIT_LENGTH + REQUEST_TYPE_BIT_LENGTH)) & ATM_ID_BITMASK;
-        int requestType = (taskInteger >>> ATM_ID_BIT_LENGTH) & REQUEST_TYPE_BITMASK;
-        return (region << REQUEST_TYPE_BIT_LENGTH) | requestType;
+    static int parseAtmId(JsonObject jsonObject) throws IllegalArgumentException {
+        int atmId = jsonObject.get("atmId").getAsInt();
+        if (atmId < ATM_ID_MIN || atmId > ATM_ID_MAX) {
+            throw new IllegalArgumentException(INVALID_ATM_ID_MESSAGE);
+        }
+        return atmId;
     }
 
-    private static int encodeTask(int region, int requestType, int atmId) {
-        return (region << (ATM_ID_BIT_LENGTH + REQUEST_TYPE_BIT_LENGTH)) | (requestType << ATM_ID_BIT_LENGTH) | atmId;
+    static JsonResponseWriter createJsonResponse(int[] order) throws IOException {
+        return writeOrder(order, JsonResponseWriter.buffered(order.length * ESTIMATED_ATM_JSON_SIZE + 2));
     }
 
-    private String createJsonResponse(Map<Integer, List<Integer>> regionAndPriority) {
-        Gson gson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-        JsonArray resultArray = new JsonArray();
-
-        for (Map.Entry<Integer, List<Integer>> entry : regionAndPriority.entrySet()) {
-            int region = (entry.getKey() >>> REQUEST_TYPE_BIT_LENGTH) & ATM_REGION_BITMASK;
-            List<Integer> atmIds = entry.getValue();
+    static JsonResponseWriter writeOrder(int[] order, JsonResponseWriter jsonResponse) throws IOException {
+        jsonResponse.beginArray();
 
-            for (Integer atmId : atmIds) {
-                JsonObject jsonObject = new JsonObject();
-                jsonObject.addProperty("region", region);
-                jsonObject.addProperty("atmId", atmId);
-                resultArray.add(jsonObject);
-            }
+        for (int atmUnique : order) {
+            jsonResponse.beginObject()
+                    .name("region").value(AtmTask.decodeUniqueRegion(atmUnique))
+                    .name("atmId").value(AtmTask.decodeUniqueAtmId(atmUnique))
+                    .endObject();
         }
 
-        return gson.toJson(resultArray);
-    }
-
-    public Map<Integer, List<Integer>> calculateOrder(List<Integer> tasks) {
-        Map<Integer, Integer> uniqueTasks = new HashMap<>();
-        Map<Integer, List<Integer>> regionAndPriority = new TreeMap<>();
-
-        int prevPriority = -1;
-        int priority;
-        List<Integer> priorityList = new LinkedList<Integer>();
-        for (Integer taskInteger : tasks) {
-            int atmUnique = getATMUnique(taskInteger);
-            priority = getPriority(taskInteger);
-            int atmId = taskInteger & ATM_ID_BITMASK;
-            if (prevPriority != priority) {
-                if (prevPriority != -1) {
-                    regionAndPriority.put(prevPriority, priorityList);
-                }
-                priorityList = regionAndPriority.getOrDefault(priority, new LinkedList<Integer>());
-                prevPriority = priority;
-            }
+        return jsonResponse.endArray();
+    }
 
-            int oldPriority = uniqueTasks.getOrDefault(atmUnique, -1);
-
-            if (oldPriority == -1 || (priority & REQUEST_TYPE_BITMASK) < (oldPriority & REQUEST_TYPE_BITMASK)) {
-                if (oldPriority != -1) {
-                    List<Integer> oldPriorityList = regionAndPriority.get(oldPriority);
-                    oldPriorityList.remove((Integer) atmId);
-                    if (oldPriorityList.isEmpty()) {
-                        regionAndPriority.remove(oldPriority);
-                    } else {
-                        regionAndPriority.put(oldPriority, oldPriorityList);
-                    }
-                }
-
-                priorityList.add(atmId);
-                uniqueTasks.put(atmUnique, priority);
-            }
-        }
-        // prevPriority is already synced to priority
-        if (prevPriority != -1) {
-            regionAndPriority.put(prevPriority, priorityList);
-        }
+    @Override
+    public int[] parseItem(JsonElement body) throws IllegalArgumentException {
+        return parseTasks(body.getAsJsonArray());
+    }
+
+    @Override
+    public int[] computeItem(int[] tasks) {
+        return calculateOrder(tasks);
+    }
+
+    @Override
+    public void writeItem(int[] order, JsonResponseWriter writer) throws IOException {
+        writeOrder(order, writer);
+    }
 
-        return regionAndPriority;
+    /**
+     * @return ATMs in route order, region and atmId packed as in AtmTask.getATMUnique
+     */
+    public int[] calculateOrder(int[] tasks) {
+        AtmOrderEngine orderEngine = new AtmOrderEngine(tasks.length);
+        for (int task : tasks) {
+            orderEngine.add(task);
+        }
+        return orderEngine.order();
     }
 
 }
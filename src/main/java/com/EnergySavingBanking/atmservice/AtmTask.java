@@ -0,0 +1,48 @@
+package com.EnergySavingBanking.atmservice;
+
+/**
+ * Bitwise encoding of a single ATM task into one int:
+ * region (14 bits) | requestType (2 bits) | atmId (14 bits).
+ * Request types are ordered by importance, 0 is the most important.
+ */
+public final class AtmTask {
+    // Restrictions from schema
+    public static final int REGION_MIN = 1;
+    public static final int REGION_MAX = 9999;
+    public static final int ATM_ID_MIN = 1;
+    public static final int ATM_ID_MAX = 9999;
+    public static final int ATM_ID_BITMASK = 0x3FFF;
+    public static final int ATM_REGION_BITMASK = 0x3FFF;
+    public static final int REQUEST_TYPE_BITMASK = 0x3;
+    public static final int ATM_ID_BIT_LENGTH = 14;
+    public static final int REQUEST_TYPE_BIT_LENGTH = 2;
+
+    private AtmTask() {
+    }
+
+    public static int encodeTask(int region, int requestType, int atmId) {
+        return (region << (ATM_ID_BIT_LENGTH + REQUEST_TYPE_BIT_LENGTH)) | (requestType << ATM_ID_BIT_LENGTH) | atmId;
+    }
+
+    // it's region and atmId
+    public static int getATMUnique(int taskInteger) {
+        int region = (taskInteger >>> (ATM_ID_BIT_LENGTH + REQUEST_TYPE_BIT_LENGTH)) & ATM_ID_BITMASK;
+        int atmId = taskInteger & ATM_ID_BITMASK;
+        return (region << ATM_ID_BIT_LENGTH) | atmId;
+    }
+
+    // it's region and request type
+    public static int getPriority(int taskInteger) {
+        int region = (taskInteger >>> (ATM_ID_BIT_LENGTH + REQUEST_TYPE_BIT_LENGTH)) & ATM_ID_BITMASK;
+        int requestType = (taskInteger >>> ATM_ID_BIT_LENGTH) & REQUEST_TYPE_BITMASK;
+        return (region << REQUEST_TYPE_BIT_LENGTH) | requestType;
+    }
+
+    public static int decodeUniqueRegion(int atmUnique) {
+        return (atmUnique >>> ATM_ID_BIT_LENGTH) & ATM_REGION_BITMASK;
+    }
+
+    public static int decodeUniqueAtmId(int atmUnique) {
+        return atmUnique & ATM_ID_BITMASK;
+    }
+}
@@ -0,0 +1,50 @@
+package com.EnergySavingBanking.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one endpoint.
+ */
+public final class EndpointMetrics {
+    final LatencyHistogram total = new LatencyHistogram();
+    final LatencyHistogram parse = new LatencyHistogram();
+    final LatencyHistogram compute = new LatencyHistogram();
+    final LatencyHistogram serialize = new LatencyHistogram();
+
+    final Map<Integer, LongAdder> responses = new ConcurrentSkipListMap<>();
+    final LongAdder failures = new LongAdder();
+    final LongAdder requestBytes = new LongAdder();
+    final LongAdder responseBytes = new LongAdder();
+    final LongAdder inFlight = new LongAdder();
+
+    EndpointMetrics() {
+    }
+
+    public RequestTimer requestStarted() {
+        inFlight.increment();
+        return RequestTimer.start();
+    }
+
+    /**
+     * @param statusCode response status, -1 when the handler sent no response
+     */
+    public void requestFinished(RequestTimer timer, int statusCode, long requestByteCount, long responseByteCount) {
+        timer.record(this);
+        responses.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+        requestBytes.add(requestByteCount);
+        responseBytes.add(responseByteCount);
+        inFlight.decrement();
+    }
+
+    // a response sent without running the handler, e.g. a 503 from a full queue
+    public void responseSent(int statusCode) {
+        responses.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+    }
+
+    // an exception escaped the handler
+    public void requestFailed() {
+        failures.increment();
+    }
+}
@@ -0,0 +1,98 @@
+package com.EnergySavingBanking.metrics;
+
+import com.EnergySavingBanking.ApplicationProperties;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Process wide registry of endpoint metrics and executors, written out in
+ * the Prometheus text format. Latencies are summaries with quantiles taken
+ * from the HDR style histograms.
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = ApplicationProperties.getBoolean("metrics.enabled", true);
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double MICROS_PER_SECOND = TimeUnit.SECONDS.toMicros(1);
+
+    private static final Map<String, EndpointMetrics> ENDPOINTS = new ConcurrentSkipListMap<>();
+    private static final Map<String, ThreadPoolExecutor> EXECUTORS = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static EndpointMetrics endpoint(String endpoint) {
+        EndpointMetrics metrics = ENDPOINTS.get(endpoint);
+        return metrics != null ? metrics : ENDPOINTS.computeIfAbsent(endpoint, name -> new EndpointMetrics());
+    }
+
+    public static void registerExecutor(String name, ThreadPoolExecutor executor) {
+        EXECUTORS.put(name, executor);
+    }
+
+    public static String toPrometheusText() {
+        StringBuilder text = new StringBuilder(8192);
+
+        header(text, "ing_request_duration_seconds", "summary",
+                "Request latency by phase, total covers the whole handler");
+        ENDPOINTS.forEach((endpoint, metrics) -> {
+            summary(text, endpoint, "total", metrics.total);
+            summary(text, endpoint, "parse", metrics.parse);
+            summary(text, endpoint, "compute", metrics.compute);
+            summary(text, endpoint, "serialize", metrics.serialize);
+        });
+
+        header(text, "ing_responses_total", "counter", "Responses by status code, -1 when none was sent");
+        ENDPOINTS.forEach((endpoint, metrics) -> metrics.responses.forEach((statusCode, count) ->
+                text.append("ing_responses_total{endpoint=\"").append(endpoint)
+                        .append("\",status=\"").append(statusCode).append("\"} ").append(count.sum()).append('\n')));
+
+        endpointCounter(text, "ing_request_failures_total", "counter",
+                "Requests ended by an exception escaping the handler", metrics -> metrics.failures);
+        endpointCounter(text, "ing_request_bytes_total", "counter", "Request body bytes read",
+                metrics -> metrics.requestBytes);
+        endpointCounter(text, "ing_response_bytes_total", "counter", "Response body bytes written",
+                metrics -> metrics.responseBytes);
+        endpointCounter(text, "ing_requests_in_flight", "gauge", "Requests being handled",
+                metrics -> metrics.inFlight);
+
+        header(text, "ing_executor_queue_depth", "gauge", "Tasks waiting for a thread");
+        EXECUTORS.forEach((name, executor) -> text.append("ing_executor_queue_depth{executor=\"").append(name)
+                .append("\"} ").append(executor.getQueue().size()).append('\n'));
+        header(text, "ing_executor_active_threads", "gauge", "Threads running a task");
+        EXECUTORS.forEach((name, executor) -> text.append("ing_executor_active_threads{executor=\"").append(name)
+                .append("\"} ").append(executor.getActiveCount()).append('\n'));
+
+        return text.toString();
+    }
+
+    private static void endpointCounter(StringBuilder text, String name, String type, String help,
+                                        Function<EndpointMetrics, LongAdder> selector) {
+        header(text, name, type, help);
+        ENDPOINTS.forEach((endpoint, metrics) -> text.append(name).append("{endpoint=\"").append(endpoint)
+                .append("\"} ").append(selector.apply(metrics).sum()).append('\n'));
+    }
+
+    private static void summary(StringBuilder text, String endpoint, String phase, LatencyHistogram histogram) {
+        String labels = "endpoint=\"" + endpoint + "\",phase=\"" + phase + "\"";
+        for (double quantile : QUANTILES) {
+            text.append("ing_request_duration_seconds{").append(labels).append(",quantile=\"").append(quantile)
+                    .append("\"} ").append(histogram.quantileMicros(quantile) / MICROS_PER_SECOND).append('\n');
+        }
+        text.append("ing_request_duration_seconds_sum{").append(labels).append("} ")
+                .append(histogram.sumMicros() / MICROS_PER_SECOND).append('\n');
+        text.append("ing_request_duration_seconds_count{").append(labels).append("} ")
+                .append(histogram.count()).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
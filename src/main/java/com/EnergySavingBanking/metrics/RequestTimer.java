@@ -0,0 +1,45 @@
+package com.EnergySavingBanking.metrics;
+
+/**
+ * Phase timestamps of the request running on the current thread. Handlers mark
+ * where parsing and computing end, everything after the compute mark counts
+ * as serialization. One instance per thread is reused, nothing is allocated per request.
+ */
+public final class RequestTimer {
+    private static final ThreadLocal<RequestTimer> CURRENT = ThreadLocal.withInitial(RequestTimer::new);
+
+    private long startedAt;
+    private long parsedAt;
+    private long computedAt;
+
+    private RequestTimer() {
+    }
+
+    static RequestTimer start() {
+        RequestTimer timer = CURRENT.get();
+        timer.startedAt = System.nanoTime();
+        timer.parsedAt = 0;
+        timer.computedAt = 0;
+        return timer;
+    }
+
+    public static void markParsed() {
+        CURRENT.get().parsedAt = System.nanoTime();
+    }
+
+    public static void markComputed() {
+        CURRENT.get().computedAt = System.nanoTime();
+    }
+
+    void record(EndpointMetrics metrics) {
+        long finishedAt = System.nanoTime();
+        metrics.total.recordNanos(finishedAt - startedAt);
+        if (parsedAt != 0) {
+            metrics.parse.recordNanos(parsedAt - startedAt);
+        }
+        if (computedAt != 0) {
+            metrics.compute.recordNanos(computedAt - (parsedAt != 0 ? parsedAt : startedAt));
+            metrics.serialize.recordNanos(finishedAt - computedAt);
+        }
+    }
+}
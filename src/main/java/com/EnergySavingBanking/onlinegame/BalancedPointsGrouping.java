@@ -0,0 +1,185 @@
+package com.EnergySavingBanking.onlinegame;
+
+import com.EnergySavingBanking.PackedSort;
+
+import java.util.Arrays;
+
+/**
+ * Evens out total points across groups, greedy like longest processing time
+ * first: it starts with the fewest groups the players of clans no bigger
+ * than a group could fit in, takes clans by points descending and gives
+ * each to the group with the lowest total points among those it fits in,
+ * opening a group only if none fits. Opened groups left empty are dropped.
+ * Groups are kept in a min heap by total points per remaining space, a
+ * segment tree over the spaces holds the best heap top of every range, so
+ * finding the group is O(log groupCount + log n) and O(n log n) overall.
+ */
+class BalancedPointsGrouping implements GroupingStrategy {
+
+    @Override
+    public int[][] calculateGroups(int[] encodedClans, int groupCount) {
+        int clanCount = encodedClans.length;
+        PackedSort.sort(encodedClans, Game.ENCODED_CLAN_BITS);
+        FirstFitGrouping.reverse(encodedClans);
+
+        // clans bigger than a group get a group of their own and don't count towards the lower bound
+        long players = 0;
+        for (int encodedClan : encodedClans) {
+            int numberOfPlayers = Game.decodeNumberOfPlayers(encodedClan);
+            if (numberOfPlayers <= groupCount) {
+                players += numberOfPlayers;
+            }
+        }
+        int openedGroups = (int) ((players + groupCount - 1) / groupCount);
+        Groups groups = new Groups(groupCount, openedGroups + clanCount);
+        int groupsInUse = openedGroups;
+        for (int group = 0; group < groupsInUse; group++) {
+            groups.add(group, groupCount);
+        }
+
+        int[] clanGroups = new int[clanCount];
+        for (int i = 0; i < clanCount; i++) {
+            int numberOfPlayers = Game.decodeNumberOfPlayers(encodedClans[i]);
+            int group = groups.takeLowestPoints(numberOfPlayers);
+            if (group == -1) {
+                group = groupsInUse++;
+                groups.spaces[group] = groupCount;
+            }
+            groups.points[group] += Game.decodePoints(encodedClans[i]);
+            int remainingSpace = groups.spaces[group] - numberOfPlayers;
+            if (remainingSpace > 0) {
+                groups.add(group, remainingSpace);
+            }
+            clanGroups[i] = group;
+        }
+
+        return Game.collectGroups(encodedClans, clanGroups, dropEmptyGroups(clanGroups, groupsInUse));
+    }
+
+    /**
+     * Renumbers the groups in order, leaving out opened groups no clan went to.
+     *
+     * @return the number of groups left
+     */
+    private static int dropEmptyGroups(int[] clanGroups, int groupsInUse) {
+        int[] renumbered = new int[groupsInUse];
+        for (int group : clanGroups) {
+            renumbered[group] = 1;
+        }
+        int groupsLeft = 0;
+        for (int group = 0; group < groupsInUse; group++) {
+            if (renumbered[group] == 1) {
+                renumbered[group] = groupsLeft++;
+            } else {
+                renumbered[group] = -1;
+            }
+        }
+        if (groupsLeft < groupsInUse) {
+            for (int i = 0; i < clanGroups.length; i++) {
+                clanGroups[i] = renumbered[clanGroups[i]];
+            }
+        }
+        return groupsLeft;
+    }
+
+    /**
+     * Groups with space left, in one min heap by (points, group) per remaining space.
+     */
+    private static final class Groups {
+        private final long[] points;
+        private final int[] spaces;
+        private final int[][] heaps;
+        private final int[] heapSizes;
+        // best heap top of the spaces under every node, -1 for none
+        private final int[] tree;
+        private final int leafCount;
+
+        private Groups(int maxSpace, int maxGroups) {
+            points = new long[maxGroups];
+            spaces = new int[maxGroups];
+            heaps = new int[maxSpace + 1][];
+            heapSizes = new int[maxSpace + 1];
+            leafCount = Integer.highestOneBit(maxSpace) << 1;
+            tree = new int[leafCount << 1];
+            Arrays.fill(tree, -1);
+        }
+
+        private void add(int group, int space) {
+            spaces[group] = space;
+            int[] heap = heaps[space];
+            if (heap == null) {
+                heap = heaps[space] = new int[8];
+            } else if (heapSizes[space] == heap.length) {
+                heap = heaps[space] = Arrays.copyOf(heap, heap.length << 1);
+            }
+            int index = heapSizes[space]++;
+            while (index > 0 && lower(group, heap[(index - 1) >>> 1])) {
+                heap[index] = heap[(index - 1) >>> 1];
+                index = (index - 1) >>> 1;
+            }
+            heap[index] = group;
+            update(space);
+        }
+
+        /**
+         * Removes the group with the lowest points among those with at least space left.
+         *
+         * @return the group, or -1 if none has that much space
+         */
+        private int takeLowestPoints(int space) {
+            int group = -1;
+            for (int from = space + leafCount, to = leafCount + leafCount - 1; from <= to; from >>>= 1, to >>>= 1) {
+                if ((from & 1) == 1) {
+                    group = better(group, tree[from++]);
+                }
+                if ((to & 1) == 0) {
+                    group = better(group, tree[to--]);
+                }
+            }
+            if (group != -1) {
+                removeTop(spaces[group]);
+            }
+            return group;
+        }
+
+        private void removeTop(int space) {
+            int[] heap = heaps[space];
+            int size = --heapSizes[space];
+            int last = heap[size];
+            int index = 0;
+            while ((index << 1) + 1 < size) {
+                int child = (index << 1) + 1;
+                if (child + 1 < size && lower(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!lower(heap[child], last)) {
+                    break;
+                }
+                heap[index] = heap[child];
+                index = child;
+            }
+            heap[index] = last;
+            update(space);
+        }
+
+        private void update(int space) {
+            int node = space + leafCount;
+            tree[node] = heapSizes[space] > 0 ? heaps[space][0] : -1;
+            for (node >>>= 1; node > 0; node >>>= 1) {
+                tree[node] = better(tree[node << 1], tree[(node << 1) | 1]);
+            }
+        }
+
+        private int better(int group, int other) {
+            if (group == -1) {
+                return other;
+            }
+            return other == -1 || lower(group, other) ? group : other;
+        }
+
+        // fewer points, then earlier group
+        private boolean lower(int group, int other) {
+            return points[group] < points[other] || points[group] == points[other] && group < other;
+        }
+    }
+}
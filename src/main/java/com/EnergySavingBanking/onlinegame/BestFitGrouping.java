@@ -0,0 +1,57 @@
+package com.EnergySavingBanking.onlinegame;
+
+import com.EnergySavingBanking.PackedSort;
+
+/**
+ * Best-fit decreasing: clans are taken by players descending (more points
+ * first on a tie) and each goes to the group it leaves the least space in,
+ * a new group only if none fits. Uses close to the fewest groups possible.
+ * Groups are kept in SpaceBuckets by remaining space, a bucket lookup is
+ * O(groupCount / 64), so linear overall with the PackedSort of the clans.
+ */
+class BestFitGrouping implements GroupingStrategy {
+    // points take 20 bits, inverted players go above them
+    private static final int POINTS_MASK = (1 << 20) - 1;
+
+    @Override
+    public int[][] calculateGroups(int[] encodedClans, int groupCount) {
+        int clanCount = encodedClans.length;
+        sortByPlayersDescending(encodedClans);
+
+        SpaceBuckets buckets = new SpaceBuckets(groupCount, clanCount);
+        int[] groupSpaces = new int[clanCount];
+        int[] clanGroups = new int[clanCount];
+        int groupsInUse = 0;
+
+        for (int i = 0; i < clanCount; i++) {
+            int numberOfPlayers = Game.decodeNumberOfPlayers(encodedClans[i]);
+            int group = buckets.takeSmallest(numberOfPlayers);
+            if (group == -1) {
+                group = groupsInUse++;
+                groupSpaces[group] = groupCount;
+            }
+            int remainingSpace = groupSpaces[group] - numberOfPlayers;
+            groupSpaces[group] = remainingSpace;
+            if (remainingSpace > 0) {
+                buckets.add(group, remainingSpace);
+            }
+            clanGroups[i] = group;
+        }
+
+        return Game.collectGroups(encodedClans, clanGroups, groupsInUse);
+    }
+
+    // re-keys the packed clans so that a plain int sort orders them, then packs them back
+    private static void sortByPlayersDescending(int[] encodedClans) {
+        int playersMask = (1 << Game.POINTS_SHIFT) - 1;
+        for (int i = 0; i < encodedClans.length; i++) {
+            int encodedClan = encodedClans[i];
+            encodedClans[i] = (encodedClan & playersMask) << 20 | POINTS_MASK - Game.decodePoints(encodedClan);
+        }
+        PackedSort.sort(encodedClans, Game.ENCODED_CLAN_BITS);
+        for (int i = 0; i < encodedClans.length; i++) {
+            int key = encodedClans[i];
+            encodedClans[i] = (POINTS_MASK - (key & POINTS_MASK)) << Game.POINTS_SHIFT | key >>> 20;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.EnergySavingBanking.onlinegame;
+
+import com.EnergySavingBanking.PackedSort;
+
+/**
+ * Clans are taken by points descending (fewer players first on a tie, see encodeClan)
+ * and each goes to the first group, in creation order, with enough space left.
+ * Clans are ordered by PackedSort in linear time, the first fitting group
+ * is found in a GroupCapacityTree, O(n log n) overall.
+ */
+class FirstFitGrouping implements GroupingStrategy {
+
+    @Override
+    public int[][] calculateGroups(int[] encodedClans, int groupCount) {
+        int clanCount = encodedClans.length;
+        PackedSort.sort(encodedClans, Game.ENCODED_CLAN_BITS);
+        reverse(encodedClans);
+
+        GroupCapacityTree capacityTree = new GroupCapacityTree(clanCount);
+        int[] clanGroups = new int[clanCount];
+        int groupsInUse = 0;
+
+        for (int i = 0; i < clanCount; i++) {
+            int numberOfPlayers = Game.decodeNumberOfPlayers(encodedClans[i]);
+            int group = capacityTree.findFirst(numberOfPlayers);
+            int remainingSpace;
+            if (group == -1) {
+                group = groupsInUse++;
+                remainingSpace = groupCount - numberOfPlayers;
+            } else {
+                remainingSpace = capacityTree.spaceOf(group) - numberOfPlayers;
+            }
+            capacityTree.set(group, remainingSpace);
+            clanGroups[i] = group;
+        }
+
+        return Game.collectGroups(encodedClans, clanGroups, groupsInUse);
+    }
+
+    static void reverse(int[] values) {
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
@@ -1,9 +1,5 @@
 package com.EnergySavingBanking.onlinegame;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-
 public class Game {
     // we need 10 bits to store up to 1000 Players in lower bits
     public static final int POINTS_SHIFT = 10;
@@ -12,11 +8,13 @@ public class Game {
     // it's 21 upper bits
     public static final int MAX_POINTS = 1_000_000;
     public static final int MIN_POINTS = 1;
+    // MAX_POINTS fits 20 bits, so encoded clans are below 2^30, see PackedSort
+    public static final int ENCODED_CLAN_BITS = 20 + POINTS_SHIFT;
 
     private int groupCount;
-    private List<Integer> encodedClans;
+    private int[] encodedClans;
 
-    public Game(int groupCount, List<Integer> encodedClans) {
+    public Game(int groupCount, int[] encodedClans) {
         this.groupCount = groupCount;
         this.encodedClans = encodedClans;
     }
@@ -25,7 +23,7 @@ public class Game {
         return groupCount;
     }
 
-    public List<Integer> getEncodedClans() {
+    public int[] getEncodedClans() {
         return encodedClans;
     }
 
@@ -43,46 +41,39 @@ public class Game {
         return encodedClan >>> POINTS_SHIFT;
     }
 
-    public List<List<Integer>> calculateGroups() {
-        encodedClans.sort(Comparator.reverseOrder());
-        int firstNonFilledGroup = 0;
-
-        List<List<Integer>> orderedGroups = new ArrayList<>();
-        List<Integer> remainingSpaces = new ArrayList<>();
-
-        for (Integer encodedClan : encodedClans) {
-            int numberOfPlayers = decodeNumberOfPlayers(encodedClan);
-            int bestGroupIndex = -1;
-            int bestRemainingSpace = groupCount + 1;
+    /**
+     * Groups with the default first-fit policy, see FirstFitGrouping.
+     *
+     * @return groups in entry order, each with its encoded clans in entry order
+     */
+    public int[][] calculateGroups() {
+        return calculateGroups(GroupingStrategy.FIRST_FIT);
+    }
 
-            boolean fullGroupsSequence = true;
-            for (int i = firstNonFilledGroup; i < orderedGroups.size(); i++) {
-                int remainingSpace = remainingSpaces.get(i);
-                if (remainingSpace != 0) {
-                    fullGroupsSequence = false;
-                }
-                if (fullGroupsSequence) {
-                    firstNonFilledGroup = i; 
-                }
-                remainingSpace -= numberOfPlayers;
-                if (remainingSpace >= 0) {
-                    bestRemainingSpace = remainingSpace;
-                    bestGroupIndex = i;
-                    break;
-                }
-            }
+    public int[][] calculateGroups(GroupingStrategy strategy) {
+        return strategy.calculateGroups(encodedClans, groupCount);
+    }
 
-            if (bestGroupIndex != -1) {
-                orderedGroups.get(bestGroupIndex).add(encodedClan);
-                remainingSpaces.set(bestGroupIndex, bestRemainingSpace);
-            } else {
-                List<Integer> newGroup = new ArrayList<>();
-                newGroup.add(encodedClan);
-                orderedGroups.add(newGroup);
-                remainingSpaces.add(groupCount - numberOfPlayers);
-            }
+    /**
+     * Builds the groups out of the group of every clan, in O(n).
+     *
+     * @param encodedClans clans in placement order, kept within each group
+     * @param clanGroups   group of the clan at the same index
+     */
+    static int[][] collectGroups(int[] encodedClans, int[] clanGroups, int groupsInUse) {
+        int[] groupSizes = new int[groupsInUse];
+        for (int group : clanGroups) {
+            groupSizes[group]++;
+        }
+        int[][] orderedGroups = new int[groupsInUse][];
+        for (int group = 0; group < groupsInUse; group++) {
+            orderedGroups[group] = new int[groupSizes[group]];
+            groupSizes[group] = 0;
+        }
+        for (int i = 0; i < encodedClans.length; i++) {
+            int group = clanGroups[i];
+            orderedGroups[group][groupSizes[group]++] = encodedClans[i];
         }
-
         return orderedGroups;
     }
 
@@ -0,0 +1,45 @@
+package com.EnergySavingBanking.onlinegame;
+
+/**
+ * Max segment tree over the remaining space of groups, in group creation order.
+ * Finds the first group with at least the requested space in O(log n).
+ * Groups not created yet have 0 space, clans always need at least one place.
+ */
+class GroupCapacityTree {
+    private final int leafCount;
+    private final int[] maxSpace;
+
+    GroupCapacityTree(int maxGroups) {
+        leafCount = Integer.highestOneBit(Math.max(maxGroups, 1) - 1 | 1) << 1;
+        maxSpace = new int[leafCount << 1];
+    }
+
+    /**
+     * @return index of the first group with at least space places left, or -1
+     */
+    public int findFirst(int space) {
+        if (maxSpace[1] < space) {
+            return -1;
+        }
+        int node = 1;
+        while (node < leafCount) {
+            node <<= 1;
+            if (maxSpace[node] < space) {
+                node++;
+            }
+        }
+        return node - leafCount;
+    }
+
+    public int spaceOf(int group) {
+        return maxSpace[group + leafCount];
+    }
+
+    public void set(int group, int space) {
+        int node = group + leafCount;
+        maxSpace[node] = space;
+        for (node >>>= 1; node > 0; node >>>= 1) {
+            maxSpace[node] = Math.max(maxSpace[node << 1], maxSpace[(node << 1) | 1]);
+        }
+    }
+}
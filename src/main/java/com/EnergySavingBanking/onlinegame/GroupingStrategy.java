@@ -0,0 +1,47 @@
+package com.EnergySavingBanking.onlinegame;
+
+import java.util.Locale;
+
+/**
+ * Policy splitting clans into groups of at most groupCount players, picked
+ * per request with the strategy query parameter:
+ * <ul>
+ * <li>first-fit (default) - highest points first, each clan to the first group it fits in</li>
+ * <li>best-fit - most players first, each clan to the group it leaves the least space in,
+ * close to the fewest groups possible</li>
+ * <li>balanced - highest points first, each clan to the group with the fewest
+ * points it fits in, evens out total points across groups</li>
+ * </ul>
+ * Strategies work on the packed clans of Game.encodeClan and may reorder the array.
+ */
+public interface GroupingStrategy {
+
+    GroupingStrategy FIRST_FIT = new FirstFitGrouping();
+    GroupingStrategy BEST_FIT = new BestFitGrouping();
+    GroupingStrategy BALANCED = new BalancedPointsGrouping();
+
+    /**
+     * @return groups in creation order, each with its encoded clans in placement order
+     */
+    int[][] calculateGroups(int[] encodedClans, int groupCount);
+
+    /**
+     * @param name the strategy query parameter, null for the default
+     * @throws IllegalArgumentException for an unknown name
+     */
+    static GroupingStrategy named(String name) throws IllegalArgumentException {
+        if (name == null) {
+            return FIRST_FIT;
+        }
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "first-fit":
+                return FIRST_FIT;
+            case "best-fit":
+                return BEST_FIT;
+            case "balanced":
+                return BALANCED;
+            default:
+                throw new IllegalArgumentException("Invalid strategy value");
+        }
+    }
+}
@@ -1,24 +1,32 @@
 package com.EnergySavingBanking.onlinegame;
 
 import com.EnergySavingBanking.AbstractHandler;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.EnergySavingBanking.BatchItemHandler;
+import com.EnergySavingBanking.BinaryCodec;
+import com.EnergySavingBanking.JsonBytes;
+import com.EnergySavingBanking.JsonResponseWriter;
+import com.EnergySavingBanking.ParallelArrayDecoder;
+import com.EnergySavingBanking.RequestBody;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 /**
- * No concurrency used because of requirement to have sorted list of clans
  * All clans are coded into one single integer to optimize memory, CPU time and CPU cache 
  * Bin packing algorithm variation was used to fill up the group.
- * Big O complexity is depeneded on data set from O(n^2) to O(n)
+ * First fitting group is found in a segment tree, so it's O(n log n)
+ * Other policies are picked with ?strategy=, see GroupingStrategy
+ * Requests are calculated on the thread the ServerEngine runs the handler on
+ * Large clan lists are validated and packed in parallel straight from the
+ * request bytes, see ParallelArrayDecoder, Gson is only the fallback
+ * Grouping itself runs on one thread, it walks the clans in sorted order
  */
-public class OnlineGameCalculateHandler extends AbstractHandler {
+public class OnlineGameCalculateHandler extends AbstractHandler implements BatchItemHandler<Game, int[][]> {
 
     public OnlineGameCalculateHandler(ExecutorService executorService) {
         super(executorService);
@@ -36,36 +44,167 @@ public class OnlineGameCalculateHandler extends AbstractHandler {
     private static final int NUMBER_OF_PLAYERS_MAX = Game.MAX_NUMBER_OF_PLAYERS;
     private static final int POINTS_MIN = Game.MIN_POINTS;
     private static final int POINTS_MAX = Game.MAX_POINTS;
+    // {"numberOfPlayers":1000,"points":1000000},
+    private static final int ESTIMATED_CLAN_JSON_SIZE = 42;
+
+    private static final String STRATEGY_PARAMETER = "strategy";
+
+    private static final byte[][] GAME_KEYS = JsonBytes.utf8("groupCount", "clans");
+    private static final byte[][] CLAN_KEYS = JsonBytes.utf8("numberOfPlayers", "points");
+
+    @Override
+    protected void processJsonRequest(RequestBody requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException, InterruptedException {
+        Game game = decodeGame(requestBody.bytes(), requestBody.length());
+        if (game == null) {
+            // the Gson path reports errors as it always did
+            super.processJsonRequest(requestBody, exchange);
+            return;
+        }
+        markParsed();
+        sendGroups(game, exchange);
+    }
 
     @Override
     protected void processRequestData(String requestBody, HttpExchange exchange) throws IOException, IllegalArgumentException {
-        executorService.submit(() -> {
-            List<List<Integer>> orderedGroups;
-            try {
-                Game game = parseGameFromJson(requestBody);
-                orderedGroups = game.calculateGroups();
-            } catch (IllegalArgumentException e) {
-                try {
-                    sendErrorResponse(exchange, e.getMessage());
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
+        Game game = parseGameFromJson(requestBody);
+        markParsed();
+        sendGroups(game, exchange);
+    }
+
+    private void sendGroups(Game game, HttpExchange exchange) throws IOException, IllegalArgumentException {
+        int[][] orderedGroups = game.calculateGroups(strategyOf(exchange));
+        markComputed();
+        sendJsonResponse(exchange, createJsonResponse(orderedGroups, game.getEncodedClans().length));
+    }
+
+    private static GroupingStrategy strategyOf(HttpExchange exchange) throws IllegalArgumentException {
+        return GroupingStrategy.named(queryParameter(exchange, STRATEGY_PARAMETER));
+    }
+
+    // fast path decoder, null if the request is not a valid game in the plain JSON shape
+    private Game decodeGame(byte[] json, int length) {
+        int groupCount = 0;
+        int clansStart = 0;
+        int clansEnd = 0;
+        int seenKeys = 0;
+        try {
+            JsonBytes game = new JsonBytes(json, 0, length);
+            game.expect('{');
+            do {
+                int key = game.nextKey(GAME_KEYS);
+                if ((seenKeys & 1 << key) != 0) {
+                    return null;
+                }
+                seenKeys |= 1 << key;
+                if (key == 0) {
+                    groupCount = game.nextInt();
+                } else {
+                    clansStart = game.position();
+                    clansEnd = game.skipFlatArray() + 1;
                 }
-                return;
+            } while (game.consume(','));
+            game.expect('}');
+            if (!game.atEnd()) {
+                return null;
             }
-            String jsonResponse = createJsonResponse(orderedGroups);
-            try {
-                sendJsonResponse(exchange, jsonResponse);
-            } catch (IOException e) {
-                e.printStackTrace();
+        } catch (RuntimeException e) {
+            if (e == JsonBytes.UNSUPPORTED) {
+                return null;
+            }
+            throw e;
+        }
+        if (seenKeys != (1 << GAME_KEYS.length) - 1 || groupCount < GROUP_COUNT_MIN || groupCount > GROUP_COUNT_MAX) {
+            return null;
+        }
+
+        int[] encodedClans = ParallelArrayDecoder.decode(json, clansStart, clansEnd,
+                OnlineGameCalculateHandler::decodeClan, executorService);
+        return encodedClans == null ? null : new Game(groupCount, encodedClans);
+    }
+
+    private static int decodeClan(JsonBytes element) {
+        int numberOfPlayers = 0;
+        int points = 0;
+        int seenKeys = 0;
+        element.expect('{');
+        do {
+            int key = element.nextKey(CLAN_KEYS);
+            if ((seenKeys & 1 << key) != 0) {
+                throw JsonBytes.UNSUPPORTED;
+            }
+            seenKeys |= 1 << key;
+            if (key == 0) {
+                numberOfPlayers = element.nextInt();
+            } else {
+                points = element.nextInt();
+            }
+        } while (element.consume(','));
+        element.expect('}');
+
+        if (seenKeys != (1 << CLAN_KEYS.length) - 1
+                || numberOfPlayers < NUMBER_OF_PLAYERS_MIN || numberOfPlayers > NUMBER_OF_PLAYERS_MAX
+                || points < POINTS_MIN || points > POINTS_MAX) {
+            throw JsonBytes.UNSUPPORTED;
+        }
+        return Game.encodeClan(numberOfPlayers, points);
+    }
+
+    /**
+     * Binary layout, see BinaryCodec:
+     * request int32 groupCount, int32 count, count x int32 clan packed as in Game.encodeClan;
+     * response int32 number of groups, then per group int32 size, size x int32 packed clan.
+     */
+    @Override
+    protected void processBinaryRequest(ByteBuffer requestBody, HttpExchange exchange)
+            throws IOException, IllegalArgumentException {
+        Game game = parseGameFromBinary(requestBody);
+        markParsed();
+        int[][] orderedGroups = game.calculateGroups(strategyOf(exchange));
+        markComputed();
+
+        ByteBuffer response = BinaryCodec.allocate(
+                Integer.BYTES * (1 + orderedGroups.length + game.getEncodedClans().length));
+        response.putInt(orderedGroups.length);
+        for (int[] group : orderedGroups) {
+            response.putInt(group.length);
+            for (int encodedClan : group) {
+                response.putInt(encodedClan);
             }
-        });
+        }
+        sendBinaryResponse(exchange, response);
+    }
+
+    private Game parseGameFromBinary(ByteBuffer requestBody) throws IllegalArgumentException {
+        int groupCount = BinaryCodec.readInt(requestBody);
+        if (groupCount < GROUP_COUNT_MIN || groupCount > GROUP_COUNT_MAX) {
+            throw new IllegalArgumentException(INVALID_GROUP_COUNT_MESSAGE);
+        }
+
+        int[] encodedClans = new int[BinaryCodec.readLength(requestBody, Integer.BYTES)];
+        for (int i = 0; i < encodedClans.length; i++) {
+            int encodedClan = requestBody.getInt();
+            int numberOfPlayers = Game.decodeNumberOfPlayers(encodedClan);
+            if (numberOfPlayers < NUMBER_OF_PLAYERS_MIN || numberOfPlayers > NUMBER_OF_PLAYERS_MAX) {
+                throw new IllegalArgumentException(INVALID_NUMBER_OF_PLAYERS_MESSAGE);
+            }
+            int points = Game.decodePoints(encodedClan);
+            if (points < POINTS_MIN || points > POINTS_MAX) {
+                throw new IllegalArgumentException(INVALID_POINTS_MESSAGE);
+            }
+            encodedClans[i] = encodedClan;
+        }
+
+        return new Game(groupCount, encodedClans);
     }
 
     private Game parseGameFromJson(String json) throws IllegalArgumentException {
-        int groupCount;
-        List<Integer> encodedClans = new ArrayList<>();
+        return parseGame(JsonParser.parseString(json).getAsJsonObject());
+    }
 
-        JsonObject jsonObject = JsonParser.parseString(json).getAsJsonObject();
+    private Game parseGame(JsonObject jsonObject) throws IllegalArgumentException {
+        int groupCount;
+        int[] encodedClans;
 
         if (jsonObject.has("groupCount")) {
             try {
@@ -82,6 +221,7 @@ public class OnlineGameCalculateHandler extends AbstractHandler {
 
         if (jsonObject.has("clans")) {
             JsonArray clansArray = jsonObject.getAsJsonArray("clans");
+            encodedClans = new int[clansArray.size()];
             for (int i = 0; i < clansArray.size(); i++) {
                 JsonObject clanObject = clansArray.get(i).getAsJsonObject();
                 int numberOfPlayers;
@@ -112,7 +252,7 @@ public class OnlineGameCalculateHandler extends AbstractHandler {
                     throw new IllegalArgumentException(INVALID_PROPERTY_KEY_MESSAGE);
                 }
     
-                encodedClans.add(Game.encodeClan(numberOfPlayers, points));
+                encodedClans[i] = Game.encodeClan(numberOfPlayers, points);
             }
         } else {
             throw new IllegalArgumentException(INVALID_PROPERTY_KEY_MESSAGE);
@@ -121,23 +261,43 @@ public class OnlineGameCalculateHandler extends AbstractHandler {
         return new Game(groupCount, encodedClans);
     }
     
-    private String createJsonResponse(List<List<Integer>> orderedGroups) {
-        Gson gson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-        JsonArray resultArray = new JsonArray();
-    
-        for (List<Integer> group : orderedGroups) {
-            JsonArray groupArray = new JsonArray();
-            for (Integer encodedClan : group) {
-                int numberOfPlayers = Game.decodeNumberOfPlayers(encodedClan);
-                int points = Game.decodePoints(encodedClan);
-                JsonObject clanObject = new JsonObject();
-                clanObject.addProperty("numberOfPlayers", numberOfPlayers);
-                clanObject.addProperty("points", points);
-                groupArray.add(clanObject);
+    @Override
+    public Game parseItem(JsonElement body) throws IllegalArgumentException {
+        return parseGame(body.getAsJsonObject());
+    }
+
+    // batch items use the default strategy, there is no query per item
+    @Override
+    public int[][] computeItem(Game game) {
+        return game.calculateGroups();
+    }
+
+    @Override
+    public void writeItem(int[][] orderedGroups, JsonResponseWriter writer) throws IOException {
+        writeGroups(orderedGroups, writer);
+    }
+
+    private JsonResponseWriter createJsonResponse(int[][] orderedGroups, int clanCount)
+            throws IOException {
+        return writeGroups(orderedGroups, JsonResponseWriter.buffered(
+                clanCount * ESTIMATED_CLAN_JSON_SIZE + orderedGroups.length * 3 + 2));
+    }
+
+    private static JsonResponseWriter writeGroups(int[][] orderedGroups, JsonResponseWriter jsonResponse)
+            throws IOException {
+        jsonResponse.beginArray();
+
+        for (int[] group : orderedGroups) {
+            jsonResponse.beginArray();
+            for (int encodedClan : group) {
+                jsonResponse.beginObject()
+                        .name("numberOfPlayers").value(Game.decodeNumberOfPlayers(encodedClan))
+                        .name("points").value(Game.decodePoints(encodedClan))
+                        .endObject();
             }
-            resultArray.add(groupArray);
+            jsonResponse.endArray();
         }
-    
-        return gson.toJson(resultArray);
+
+        return jsonResponse.endArray();
     }
-}    
+}
\ No newline at end of file
@@ -0,0 +1,60 @@
+package com.EnergySavingBanking.onlinegame;
+
+import java.util.Arrays;
+
+/**
+ * Groups bucketed by their remaining space, 1 to maxSpace, full groups are
+ * not kept. Every bucket is an intrusive stack of groups and a bitmap of the
+ * non-empty buckets finds the smallest space that still fits a clan.
+ */
+class SpaceBuckets {
+    private final int[] heads;
+    private final int[] nextGroups;
+    private final long[] nonEmpty;
+
+    SpaceBuckets(int maxSpace, int maxGroups) {
+        heads = new int[maxSpace + 1];
+        Arrays.fill(heads, -1);
+        nextGroups = new int[maxGroups];
+        nonEmpty = new long[(maxSpace >>> 6) + 1];
+    }
+
+    public void add(int group, int space) {
+        nextGroups[group] = heads[space];
+        heads[space] = group;
+        nonEmpty[space >>> 6] |= 1L << space;
+    }
+
+    /**
+     * Removes a group from the smallest bucket with at least space places left.
+     *
+     * @return the group, or -1 if no group has that much space
+     */
+    public int takeSmallest(int space) {
+        int bucket = nextNonEmpty(space);
+        if (bucket == -1) {
+            return -1;
+        }
+        int group = heads[bucket];
+        heads[bucket] = nextGroups[group];
+        if (heads[bucket] == -1) {
+            nonEmpty[bucket >>> 6] &= ~(1L << bucket);
+        }
+        return group;
+    }
+
+    private int nextNonEmpty(int from) {
+        int word = from >>> 6;
+        if (word >= nonEmpty.length) {
+            return -1;
+        }
+        long bits = nonEmpty[word] & -1L << from;
+        while (bits == 0) {
+            if (++word == nonEmpty.length) {
+                return -1;
+            }
+            bits = nonEmpty[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+}
@@ -1,59 +1,60 @@
 package com.EnergySavingBanking.transactions;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
-public class AccountData {
-    private String accountNumber;
-    private AtomicInteger debitCount;
-    private AtomicInteger creditCount;
-    private AtomicReference<BigDecimal> balance;
-
-    private static final int SCALE = 2;
-    private static final RoundingMode ROUNDING_MODE = RoundingMode.HALF_EVEN;
-
-    public AccountData(String accountNumber) {
-        this.accountNumber = accountNumber;
-        this.debitCount = new AtomicInteger(0);
-        this.creditCount = new AtomicInteger(0);
-        this.balance = new AtomicReference<>(setScaledValue(BigDecimal.ZERO));
+/**
+ * Final state of a single account in the report.
+ * The account number is kept packed (see AccountKey) and the balance as a
+ * long scaled by 10^SCALE, both are converted back only when the report
+ * is written.
+ */
+public class AccountData implements Comparable<AccountData> {
+    private final long accountHigh;
+    private final long accountLow;
+    private final int debitCount;
+    private final int creditCount;
+    private final long balance;
+
+    public static final int SCALE = 2;
+
+    public AccountData(long accountHigh, long accountLow, int debitCount, int creditCount, long balance) {
+        this.accountHigh = accountHigh;
+        this.accountLow = accountLow;
+        this.debitCount = debitCount;
+        this.creditCount = creditCount;
+        this.balance = balance;
     }
 
     public String getAccountNumber() {
-        return accountNumber;
-    }
-
-    public void incrementDebitCount() {
-        debitCount.incrementAndGet();
+        return AccountKey.format(accountHigh, accountLow);
     }
 
-    public void incrementCreditCount() {
-        creditCount.incrementAndGet();
+    public long getAccountHigh() {
+        return accountHigh;
     }
 
-    public void addToBalance(BigDecimal amount) {
-        balance.updateAndGet(b -> setScaledValue(b.add(amount)));
-    }
-
-    public void subtractFromBalance(BigDecimal amount) {
-        balance.updateAndGet(b -> setScaledValue(b.subtract(amount)));
+    public long getAccountLow() {
+        return accountLow;
     }
 
     public int getDebitCount() {
-        return debitCount.get();
+        return debitCount;
     }
 
     public int getCreditCount() {
-        return creditCount.get();
+        return creditCount;
+    }
+
+    public long getScaledBalance() {
+        return balance;
     }
 
     public BigDecimal getBalance() {
-        return balance.get();
+        return BigDecimal.valueOf(balance, SCALE);
     }
 
-    private BigDecimal setScaledValue(BigDecimal value) {
-        return value.setScale(SCALE, ROUNDING_MODE);
+    @Override
+    public int compareTo(AccountData other) {
+        return AccountKey.compare(accountHigh, accountLow, other.accountHigh, other.accountLow);
     }
-}
\ No newline at end of file
+}
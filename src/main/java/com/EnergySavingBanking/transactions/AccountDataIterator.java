@@ -0,0 +1,12 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.Iterator;
+
+/**
+ * Accounts of a report in account order, with the count known up front.
+ */
+interface AccountDataIterator extends Iterator<AccountData> {
+
+    // total number of accounts
+    int size();
+}
@@ -0,0 +1,62 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of account-sorted runs with disjoint accounts.
+ * Uses a heap of run cursors, so producing the report is O(n log k).
+ */
+class AccountDataMergeIterator implements AccountDataIterator {
+    private final PriorityQueue<Cursor> heap;
+    private final int size;
+
+    public AccountDataMergeIterator(AccountData[][] sortedRuns) {
+        this.heap = new PriorityQueue<>(Math.max(1, sortedRuns.length));
+        int total = 0;
+        for (AccountData[] run : sortedRuns) {
+            total += run.length;
+            if (run.length > 0) {
+                heap.add(new Cursor(run));
+            }
+        }
+        this.size = total;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public AccountData next() {
+        Cursor cursor = heap.poll();
+        if (cursor == null) {
+            throw new NoSuchElementException();
+        }
+        AccountData accountData = cursor.run[cursor.position++];
+        if (cursor.position < cursor.run.length) {
+            heap.add(cursor);
+        }
+        return accountData;
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final AccountData[] run;
+        private int position;
+
+        Cursor(AccountData[] run) {
+            this.run = run;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return run[position].compareTo(other.run[other.position]);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.EnergySavingBanking.transactions;
+
+/**
+ * Codec packing a 26-digit account number into two longs holding
+ * 13 digits each. Comparing the (high, low) pairs gives the same order
+ * as comparing the original strings, so sorting runs on primitives and
+ * the string is rebuilt only when the report is written.
+ */
+final class AccountKey {
+    public static final int ACCOUNT_NUMBER_LENGTH = 26;
+    private static final int HALF_LENGTH = ACCOUNT_NUMBER_LENGTH / 2;
+    // 10^13, one more than the largest 13-digit half
+    private static final long HALF_LIMIT = 10_000_000_000_000L;
+
+    private AccountKey() {
+    }
+
+    public static boolean isValid(String accountNumber) {
+        if (accountNumber.length() != ACCOUNT_NUMBER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < ACCOUNT_NUMBER_LENGTH; i++) {
+            char c = accountNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // checks a key received already packed, e.g. in the binary protocol
+    public static boolean isValid(long high, long low) {
+        return high >= 0 && high < HALF_LIMIT && low >= 0 && low < HALF_LIMIT;
+    }
+
+    // accountNumber has to be valid
+    public static long high(String accountNumber) {
+        return parseDigits(accountNumber, 0);
+    }
+
+    // accountNumber has to be valid
+    public static long low(String accountNumber) {
+        return parseDigits(accountNumber, HALF_LENGTH);
+    }
+
+    public static int compare(long high, long low, long otherHigh, long otherLow) {
+        int result = Long.compare(high, otherHigh);
+        return result != 0 ? result : Long.compare(low, otherLow);
+    }
+
+    public static String format(long high, long low) {
+        char[] digits = new char[ACCOUNT_NUMBER_LENGTH];
+        formatDigits(high, digits, 0);
+        formatDigits(low, digits, HALF_LENGTH);
+        return new String(digits);
+    }
+
+    private static long parseDigits(String accountNumber, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + HALF_LENGTH; i++) {
+            value = value * 10 + (accountNumber.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static void formatDigits(long value, char[] digits, int offset) {
+        for (int i = offset + HALF_LENGTH - 1; i >= offset; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
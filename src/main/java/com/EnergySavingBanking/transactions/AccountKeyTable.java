@@ -0,0 +1,88 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.Arrays;
+
+/**
+ * Intern table resolving packed account keys to dense int ids.
+ * Open addressing with linear probing on primitive arrays, ids are
+ * assigned in order of first appearance. Not thread safe, it is filled
+ * by the request reader only.
+ */
+class AccountKeyTable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int EMPTY = -1;
+
+    private int[] table = newTable(INITIAL_CAPACITY << 1);
+    private long[] highs = new long[INITIAL_CAPACITY];
+    private long[] lows = new long[INITIAL_CAPACITY];
+    private int size;
+
+    public int intern(long high, long low) {
+        int mask = table.length - 1;
+        int index = hash(high, low) & mask;
+        int id;
+        while ((id = table[index]) != EMPTY) {
+            if (highs[id] == high && lows[id] == low) {
+                return id;
+            }
+            index = (index + 1) & mask;
+        }
+
+        id = size++;
+        if (id == highs.length) {
+            highs = Arrays.copyOf(highs, id << 1);
+            lows = Arrays.copyOf(lows, id << 1);
+        }
+        highs[id] = high;
+        lows[id] = low;
+        table[index] = id;
+        // keep the load factor at or below 1/2
+        if (size << 1 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    // forgets all accounts, ids are handed out from 0 again
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long high(int id) {
+        return highs[id];
+    }
+
+    public long low(int id) {
+        return lows[id];
+    }
+
+    private void rehash() {
+        int[] newTable = newTable(table.length << 1);
+        int mask = newTable.length - 1;
+        for (int id = 0; id < size; id++) {
+            int index = hash(highs[id], lows[id]) & mask;
+            while (newTable[index] != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            newTable[index] = id;
+        }
+        table = newTable;
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] newTable = new int[capacity];
+        Arrays.fill(newTable, EMPTY);
+        return newTable;
+    }
+
+    static int hash(long high, long low) {
+        long hash = (high * 0x9E3779B97F4A7C15L) ^ low;
+        hash *= 0xC2B2AE3D27D4EB4FL;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
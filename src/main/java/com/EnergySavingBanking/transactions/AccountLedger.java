@@ -0,0 +1,76 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates debit/credit counts and balances of accounts in primitive
+ * arrays indexed by account slot, so applying a posting does not allocate.
+ * Balances are scaled longs, every update is overflow checked with
+ * Math.*Exact and throws ArithmeticException instead of wrapping.
+ * Not thread safe, every worker owns its ledger.
+ */
+class AccountLedger {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] debitCounts = new int[INITIAL_CAPACITY];
+    private int[] creditCounts = new int[INITIAL_CAPACITY];
+    private long[] balances = new long[INITIAL_CAPACITY];
+    private int size;
+
+    public void debit(int slot, long amount) {
+        ensureSlot(slot);
+        debitCounts[slot] = Math.incrementExact(debitCounts[slot]);
+        balances[slot] = Math.subtractExact(balances[slot], amount);
+    }
+
+    public void credit(int slot, long amount) {
+        ensureSlot(slot);
+        creditCounts[slot] = Math.incrementExact(creditCounts[slot]);
+        balances[slot] = Math.addExact(balances[slot], amount);
+    }
+
+    // adds the totals of several postings at once
+    public void add(int slot, int debitCount, int creditCount, long balance) {
+        ensureSlot(slot);
+        debitCounts[slot] = Math.addExact(debitCounts[slot], debitCount);
+        creditCounts[slot] = Math.addExact(creditCounts[slot], creditCount);
+        balances[slot] = Math.addExact(balances[slot], balance);
+    }
+
+    // overwrites the slot, used to restore or carry over aggregated state
+    public void set(int slot, int debitCount, int creditCount, long balance) {
+        ensureSlot(slot);
+        debitCounts[slot] = debitCount;
+        creditCounts[slot] = creditCount;
+        balances[slot] = balance;
+    }
+
+    // number of slots in use, slots below it that were never posted to stay zero
+    public int size() {
+        return size;
+    }
+
+    public int getDebitCount(int slot) {
+        return debitCounts[slot];
+    }
+
+    public int getCreditCount(int slot) {
+        return creditCounts[slot];
+    }
+
+    public long getBalance(int slot) {
+        return balances[slot];
+    }
+
+    private void ensureSlot(int slot) {
+        if (slot >= balances.length) {
+            int capacity = Math.max(balances.length << 1, slot + 1);
+            debitCounts = Arrays.copyOf(debitCounts, capacity);
+            creditCounts = Arrays.copyOf(creditCounts, capacity);
+            balances = Arrays.copyOf(balances, capacity);
+        }
+        if (slot >= size) {
+            size = slot + 1;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.EnergySavingBanking.transactions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/**
+ * Account-sorted run of aggregated accounts in a temp file, fixed size records of
+ * int64 account high, int64 account low, int32 debitCount, int32 creditCount, int64 balance.
+ * Written sequentially through a direct buffer and read back through memory
+ * mapped windows, so neither side keeps more than a window of it on the heap
+ * or in the address space. The file is deleted on close.
+ */
+class AccountRunFile implements Closeable {
+    private static final int RECORD_SIZE = 3 * Long.BYTES + 2 * Integer.BYTES;
+    private static final int WRITE_BUFFER_SIZE = 2048 * RECORD_SIZE;
+    private static final int MAP_WINDOW_SIZE = 262_144 * RECORD_SIZE;
+
+    private final Path path;
+    private final FileChannel channel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long count;
+
+    private AccountRunFile(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    static AccountRunFile create(Path directory) throws IOException {
+        return new AccountRunFile(Files.createTempFile(directory, "transactions-run-", ".bin"));
+    }
+
+    void append(AccountData accountData) throws IOException {
+        if (!writeBuffer.hasRemaining()) {
+            flush();
+        }
+        writeBuffer.putLong(accountData.getAccountHigh())
+                .putLong(accountData.getAccountLow())
+                .putInt(accountData.getDebitCount())
+                .putInt(accountData.getCreditCount())
+                .putLong(accountData.getScaledBalance());
+        count++;
+    }
+
+    /**
+     * Ends writing, the run can only be read from now on.
+     */
+    Reader reader() throws IOException {
+        if (writeBuffer != null) {
+            flush();
+            writeBuffer = null;
+        }
+        return new Reader();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    class Reader implements AccountDataIterator {
+        private long position;
+        private long windowEnd;
+        private MappedByteBuffer window;
+
+        @Override
+        public int size() {
+            return Math.toIntExact(count);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < count;
+        }
+
+        @Override
+        public AccountData next() {
+            if (position == count) {
+                throw new NoSuchElementException();
+            }
+            if (position == windowEnd) {
+                mapNextWindow();
+            }
+            position++;
+            return new AccountData(window.getLong(), window.getLong(), window.getInt(), window.getInt(),
+                    window.getLong());
+        }
+
+        private void mapNextWindow() {
+            long offset = position * RECORD_SIZE;
+            long length = Math.min(MAP_WINDOW_SIZE, count * RECORD_SIZE - offset);
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            windowEnd = position + length / RECORD_SIZE;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.Arrays;
+
+/**
+ * Per account totals of one chunk of transactions. Accounts are kept by
+ * number rather than by request scoped id, so an aggregate can be cached
+ * and merged into any later request, see ChunkAggregateCache.
+ */
+final class ChunkAggregate {
+    // five longs per transaction: debit high, debit low, credit high, credit low, amount
+    static final int RECORD_LONGS = 5;
+    private static final int ACCOUNT_BYTES = 3 * Long.BYTES + 2 * Integer.BYTES;
+    private static final int EMPTY = -1;
+
+    final long[] highs;
+    final long[] lows;
+    final int[] debitCounts;
+    final int[] creditCounts;
+    final long[] balances;
+    final int size;
+
+    private ChunkAggregate(long[] highs, long[] lows, int[] debitCounts, int[] creditCounts, long[] balances,
+                           int size) {
+        this.highs = highs;
+        this.lows = lows;
+        this.debitCounts = debitCounts;
+        this.creditCounts = creditCounts;
+        this.balances = balances;
+        this.size = size;
+    }
+
+    /**
+     * Aggregates count transaction records with an open addressing table local to the chunk.
+     *
+     * @throws ArithmeticException if a balance of the chunk overflows
+     */
+    static ChunkAggregate of(long[] records, int count) {
+        int maxAccounts = count << 1;
+        int[] table = new int[Integer.highestOneBit(Math.max(maxAccounts, 1)) << 2];
+        Arrays.fill(table, EMPTY);
+        long[] highs = new long[maxAccounts];
+        long[] lows = new long[maxAccounts];
+        int[] debitCounts = new int[maxAccounts];
+        int[] creditCounts = new int[maxAccounts];
+        long[] balances = new long[maxAccounts];
+        int size = 0;
+
+        for (int i = 0; i < count * RECORD_LONGS; i += RECORD_LONGS) {
+            for (int side = 0; side < 2; side++) {
+                long high = records[i + (side << 1)];
+                long low = records[i + (side << 1) + 1];
+                int mask = table.length - 1;
+                int index = AccountKeyTable.hash(high, low) & mask;
+                int account;
+                while ((account = table[index]) != EMPTY && (highs[account] != high || lows[account] != low)) {
+                    index = (index + 1) & mask;
+                }
+                if (account == EMPTY) {
+                    account = size++;
+                    table[index] = account;
+                    highs[account] = high;
+                    lows[account] = low;
+                }
+                long amount = records[i + 4];
+                if (side == 0) {
+                    debitCounts[account]++;
+                    balances[account] = Math.subtractExact(balances[account], amount);
+                } else {
+                    creditCounts[account]++;
+                    balances[account] = Math.addExact(balances[account], amount);
+                }
+            }
+        }
+        return new ChunkAggregate(Arrays.copyOf(highs, size), Arrays.copyOf(lows, size),
+                Arrays.copyOf(debitCounts, size), Arrays.copyOf(creditCounts, size), Arrays.copyOf(balances, size),
+                size);
+    }
+
+    long sizeInBytes() {
+        return (long) size * ACCOUNT_BYTES;
+    }
+}
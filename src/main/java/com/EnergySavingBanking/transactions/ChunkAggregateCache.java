@@ -0,0 +1,84 @@
+package com.EnergySavingBanking.transactions;
+
+import com.EnergySavingBanking.ApplicationProperties;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of chunk aggregates shared by all report requests, keyed by a
+ * 128 bit fingerprint of the chunk's transactions, so a report resubmitted
+ * with mostly the same transactions (a sliding window) only aggregates the
+ * chunks it has not seen before and merges the cached ones.
+ * Two independent 64 bit hashes and the transaction count make a false hit
+ * about as likely as a random 128 bit collision, the chunk itself is not
+ * kept for comparison, it would take more memory than its aggregate.
+ * Bounded by transactions.chunkCache.maxBytes of aggregates, 0 disables it.
+ */
+final class ChunkAggregateCache {
+    private static final long MAX_BYTES = ApplicationProperties.getLong("transactions.chunkCache.maxBytes", 0);
+    private static final ChunkAggregateCache SHARED = MAX_BYTES > 0 ? new ChunkAggregateCache(MAX_BYTES) : null;
+    // key and map node overhead
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final Map<Fingerprint, ChunkAggregate> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long usedBytes;
+
+    ChunkAggregateCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // null when caching is disabled
+    static ChunkAggregateCache shared() {
+        return SHARED;
+    }
+
+    synchronized ChunkAggregate get(Fingerprint fingerprint) {
+        return entries.get(fingerprint);
+    }
+
+    synchronized void put(Fingerprint fingerprint, ChunkAggregate aggregate) {
+        long size = aggregate.sizeInBytes() + ENTRY_OVERHEAD;
+        if (size > maxBytes) {
+            return;
+        }
+        ChunkAggregate previous = entries.put(fingerprint, aggregate);
+        if (previous != null) {
+            usedBytes -= previous.sizeInBytes() + ENTRY_OVERHEAD;
+        }
+        usedBytes += size;
+        Iterator<ChunkAggregate> eldest = entries.values().iterator();
+        while (usedBytes > maxBytes) {
+            usedBytes -= eldest.next().sizeInBytes() + ENTRY_OVERHEAD;
+            eldest.remove();
+        }
+    }
+
+    static final class Fingerprint {
+        private final long first;
+        private final long second;
+        private final int count;
+
+        Fingerprint(long first, long second, int count) {
+            this.first = first;
+            this.second = second;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint fingerprint = (Fingerprint) other;
+            return first == fingerprint.first && second == fingerprint.second && count == fingerprint.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) first;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Re-cuts the parsed transactions into chunks whose boundaries depend on
+ * their content only: a chunk ends after a transaction whose hash has its
+ * low bits clear, once it holds MIN_CHUNK_SIZE transactions (or at
+ * MAX_CHUNK_SIZE). Dropping transactions from the front of a report or
+ * appending to its end thus leaves the later boundaries in place and the
+ * chunks between them hit the ChunkAggregateCache, fixed size chunks would
+ * all shift. Transactions are kept by account number, not by id, so the key
+ * table may be cleared for a spill while a chunk is still open.
+ * A cached chunk is merged as its aggregate. A chunk seen for the first time
+ * goes to the aggregator as transactions, like without the cache, and its
+ * aggregate is built for the cache on the executor, off the request thread.
+ */
+final class ContentDefinedChunker {
+    private static final int MIN_CHUNK_SIZE = 4_096;
+    // a boundary every 8192 transactions on average past the minimum
+    private static final long BOUNDARY_MASK = 8_191;
+    private static final int MAX_CHUNK_SIZE = 65_536;
+
+    private final AccountKeyTable accountKeys;
+    private final ChunkAggregateCache cache;
+    private final TransactionAggregator aggregator;
+    private final Executor executor;
+    private long[] records = new long[MIN_CHUNK_SIZE * ChunkAggregate.RECORD_LONGS];
+    private int count;
+    private long firstHash;
+    private long secondHash;
+
+    ContentDefinedChunker(AccountKeyTable accountKeys, ChunkAggregateCache cache, TransactionAggregator aggregator,
+                          Executor executor) {
+        this.accountKeys = accountKeys;
+        this.cache = cache;
+        this.aggregator = aggregator;
+        this.executor = executor;
+    }
+
+    void accept(List<Transaction> transactions) {
+        for (Transaction transaction : transactions) {
+            int debitAccount = transaction.getDebitAccount();
+            int creditAccount = transaction.getCreditAccount();
+            long debitHigh = accountKeys.high(debitAccount);
+            long debitLow = accountKeys.low(debitAccount);
+            long creditHigh = accountKeys.high(creditAccount);
+            long creditLow = accountKeys.low(creditAccount);
+            long amount = transaction.getAmount();
+
+            if ((count + 1) * ChunkAggregate.RECORD_LONGS > records.length) {
+                records = Arrays.copyOf(records, records.length << 1);
+            }
+            int record = count++ * ChunkAggregate.RECORD_LONGS;
+            records[record] = debitHigh;
+            records[record + 1] = debitLow;
+            records[record + 2] = creditHigh;
+            records[record + 3] = creditLow;
+            records[record + 4] = amount;
+
+            long hash = mix(mix(mix(mix(mix(0x9E3779B97F4A7C15L, debitHigh), debitLow), creditHigh), creditLow),
+                    amount);
+            firstHash = (firstHash ^ hash) * 0x9E3779B97F4A7C15L;
+            secondHash = Long.rotateLeft(secondHash + mix(hash, 0xC2B2AE3D27D4EB4FL), 29) * 0x165667B19E3779F9L;
+            if (count >= MAX_CHUNK_SIZE || count >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) {
+                cut();
+            }
+        }
+    }
+
+    // cuts the last, partial chunk
+    void finish() {
+        if (count > 0) {
+            cut();
+        }
+    }
+
+    private void cut() {
+        ChunkAggregateCache.Fingerprint fingerprint = new ChunkAggregateCache.Fingerprint(firstHash, secondHash,
+                count);
+        ChunkAggregate aggregate = cache.get(fingerprint);
+        if (aggregate != null) {
+            aggregator.submitAsync(aggregate);
+        } else {
+            // cut only runs within accept, between spills, so the accounts can be interned now
+            aggregator.submitAsync(toTransactions(records, count));
+            long[] chunkRecords = records;
+            int chunkCount = count;
+            executor.execute(() -> cacheAggregate(fingerprint, chunkRecords, chunkCount));
+            records = new long[chunkRecords.length];
+        }
+        count = 0;
+        firstHash = 0;
+        secondHash = 0;
+    }
+
+    private List<Transaction> toTransactions(long[] chunkRecords, int chunkCount) {
+        List<Transaction> transactions = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount * ChunkAggregate.RECORD_LONGS; i += ChunkAggregate.RECORD_LONGS) {
+            transactions.add(new Transaction(accountKeys.intern(chunkRecords[i], chunkRecords[i + 1]),
+                    accountKeys.intern(chunkRecords[i + 2], chunkRecords[i + 3]), chunkRecords[i + 4]));
+        }
+        return transactions;
+    }
+
+    private void cacheAggregate(ChunkAggregateCache.Fingerprint fingerprint, long[] chunkRecords, int chunkCount) {
+        try {
+            cache.put(fingerprint, ChunkAggregate.of(chunkRecords, chunkCount));
+        } catch (ArithmeticException e) {
+            // the chunk's own total overflows, the aggregator reports it for the request
+        }
+    }
+
+    private static long mix(long hash, long value) {
+        hash ^= value * 0xC2B2AE3D27D4EB4FL;
+        hash = Long.rotateLeft(hash, 31) * 0x9E3779B185EBCA87L;
+        return hash ^ (hash >>> 29);
+    }
+}
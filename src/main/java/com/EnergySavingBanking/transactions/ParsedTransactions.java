@@ -0,0 +1,16 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.List;
+
+/**
+ * Transactions of a batch item with the table their account ids refer to.
+ */
+final class ParsedTransactions {
+    final AccountKeyTable accountKeys;
+    final List<Transaction> transactions;
+
+    ParsedTransactions(AccountKeyTable accountKeys, List<Transaction> transactions) {
+        this.accountKeys = accountKeys;
+        this.transactions = transactions;
+    }
+}
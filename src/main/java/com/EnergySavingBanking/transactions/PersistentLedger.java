@@ -0,0 +1,294 @@
+package com.EnergySavingBanking.transactions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Running account ledger kept across report requests.
+ * A batch is aggregated per account like a normal report, then its deltas
+ * are appended to a write-ahead log as one checksummed frame, and only then
+ * applied to the in-memory ledger, so applying costs time proportional to
+ * the accounts of the batch, never to the whole history.
+ * Once the log outgrows snapshotWalBytes the ledger is written to a
+ * compacted snapshot and the log starts over in a new generation:
+ * <pre>
+ *   snapshot.bin   int64 generation, int64 count, count x account record, int32 crc32c
+ *   wal-&lt;generation&gt;.log   frames of int32 count, int32 crc32c, count x account record
+ *   account record int64 high, int64 low, int32 debitCount, int32 creditCount, int64 balance
+ * </pre>
+ * Recovery maps the snapshot and replays logs of its generation and later,
+ * a torn frame at the end of the last log is cut off.
+ */
+public class PersistentLedger implements Closeable {
+    private static final int RECORD_SIZE = 3 * Long.BYTES + 2 * Integer.BYTES;
+    private static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int SNAPSHOT_HEADER_SIZE = 2 * Long.BYTES;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+
+    private final Path directory;
+    private final boolean fsync;
+    private final long snapshotWalBytes;
+    private final AccountKeyTable accountKeys = new AccountKeyTable();
+    private final AccountLedger ledger = new AccountLedger();
+    private long generation;
+    private FileChannel wal;
+
+    private PersistentLedger(Path directory, boolean fsync, long snapshotWalBytes) {
+        this.directory = directory;
+        this.fsync = fsync;
+        this.snapshotWalBytes = snapshotWalBytes;
+    }
+
+    /**
+     * Opens the ledger in the directory, recovering snapshot and log if present.
+     */
+    public static PersistentLedger open(Path directory, boolean fsync, long snapshotWalBytes) throws IOException {
+        Files.createDirectories(directory);
+        PersistentLedger persistentLedger = new PersistentLedger(directory, fsync, snapshotWalBytes);
+        persistentLedger.recover();
+        return persistentLedger;
+    }
+
+    /**
+     * Adds the per-account deltas of a batch, the batch is applied entirely or not at all.
+     *
+     * @return cumulative state of the accounts of the batch, in account order
+     * @throws ArithmeticException if a cumulative count or balance would overflow, nothing is applied then
+     */
+    public synchronized AccountDataIterator apply(AccountDataIterator deltas) throws IOException {
+        AccountData[] cumulative = new AccountData[deltas.size()];
+        int[] ids = new int[cumulative.length];
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + cumulative.length * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        frame.position(FRAME_HEADER_SIZE);
+
+        for (int i = 0; i < cumulative.length; i++) {
+            AccountData delta = deltas.next();
+            int id = accountKeys.intern(delta.getAccountHigh(), delta.getAccountLow());
+            ids[i] = id;
+            cumulative[i] = new AccountData(delta.getAccountHigh(), delta.getAccountLow(),
+                    Math.addExact(debitCount(id), delta.getDebitCount()),
+                    Math.addExact(creditCount(id), delta.getCreditCount()),
+                    Math.addExact(balance(id), delta.getScaledBalance()));
+            putRecord(frame, delta);
+        }
+
+        writeFrame(frame, cumulative.length);
+        for (int i = 0; i < cumulative.length; i++) {
+            ledger.set(ids[i], cumulative[i].getDebitCount(), cumulative[i].getCreditCount(),
+                    cumulative[i].getScaledBalance());
+        }
+        if (wal.size() >= snapshotWalBytes) {
+            snapshot();
+        }
+        return new AccountDataMergeIterator(new AccountData[][]{cumulative});
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        wal.close();
+    }
+
+    private int debitCount(int id) {
+        return id < ledger.size() ? ledger.getDebitCount(id) : 0;
+    }
+
+    private int creditCount(int id) {
+        return id < ledger.size() ? ledger.getCreditCount(id) : 0;
+    }
+
+    private long balance(int id) {
+        return id < ledger.size() ? ledger.getBalance(id) : 0;
+    }
+
+    private void writeFrame(ByteBuffer frame, int count) throws IOException {
+        CRC32C checksum = new CRC32C();
+        checksum.update(frame.array(), FRAME_HEADER_SIZE, count * RECORD_SIZE);
+        frame.putInt(0, count).putInt(Integer.BYTES, (int) checksum.getValue());
+        frame.flip();
+        long walSize = wal.size();
+        try {
+            while (frame.hasRemaining()) {
+                wal.write(frame);
+            }
+            if (fsync) {
+                wal.force(false);
+            }
+        } catch (IOException e) {
+            // a partly written frame would hide every later frame from recovery
+            wal.truncate(walSize);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the whole ledger as the snapshot of the next generation and
+     * starts its log, the previous log is only deleted once the snapshot is in place.
+     */
+    private void snapshot() throws IOException {
+        long nextGeneration = generation + 1;
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel snapshot = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(2048 * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32C checksum = new CRC32C();
+            buffer.putLong(nextGeneration).putLong(accountKeys.size());
+            for (int id = 0; id < accountKeys.size(); id++) {
+                if (buffer.remaining() < RECORD_SIZE + Integer.BYTES) {
+                    writeChecksummed(snapshot, buffer, checksum);
+                }
+                putRecord(buffer, new AccountData(accountKeys.high(id), accountKeys.low(id),
+                        debitCount(id), creditCount(id), balance(id)));
+            }
+            writeChecksummed(snapshot, buffer, checksum);
+            buffer.putInt((int) checksum.getValue()).flip();
+            snapshot.write(buffer);
+            snapshot.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        wal.close();
+        Files.deleteIfExists(walPath(generation));
+        generation = nextGeneration;
+        wal = openWal(generation);
+    }
+
+    private static void writeChecksummed(FileChannel channel, ByteBuffer buffer, CRC32C checksum)
+            throws IOException {
+        buffer.flip();
+        checksum.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void recover() throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotPath)) {
+            loadSnapshot(snapshotPath);
+        }
+
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, WAL_PREFIX + "*" + WAL_SUFFIX)) {
+            for (Path log : logs) {
+                String name = log.getFileName().toString();
+                generations.add(Long.parseLong(name.substring(WAL_PREFIX.length(), name.length() - WAL_SUFFIX.length())));
+            }
+        }
+        generations.sort(null);
+        for (long logGeneration : generations) {
+            if (logGeneration < generation) {
+                // already part of the snapshot
+                Files.delete(walPath(logGeneration));
+            } else {
+                replay(walPath(logGeneration));
+                generation = logGeneration;
+            }
+        }
+        wal = openWal(generation);
+    }
+
+    private void loadSnapshot(Path snapshotPath) throws IOException {
+        try (FileChannel snapshot = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            MappedByteBuffer records = snapshot.map(FileChannel.MapMode.READ_ONLY, 0, snapshot.size());
+            records.order(ByteOrder.LITTLE_ENDIAN);
+            long count = (records.remaining() - SNAPSHOT_HEADER_SIZE - Integer.BYTES) / RECORD_SIZE;
+            CRC32C checksum = new CRC32C();
+            checksum.update(records.duplicate().limit(records.limit() - Integer.BYTES));
+            if (count < 0 || records.getLong(Long.BYTES) != count
+                    || records.getInt(records.limit() - Integer.BYTES) != (int) checksum.getValue()) {
+                throw new IOException("Corrupted ledger snapshot " + snapshotPath);
+            }
+            generation = records.getLong();
+            records.position(SNAPSHOT_HEADER_SIZE);
+            for (long i = 0; i < count; i++) {
+                applyRecord(records);
+            }
+        }
+    }
+
+    private void replay(Path log) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long validSize = 0;
+            while (true) {
+                header.clear();
+                if (channel.read(header, validSize) < FRAME_HEADER_SIZE) {
+                    break;
+                }
+                int count = header.getInt(0);
+                long frameSize = FRAME_HEADER_SIZE + (long) count * RECORD_SIZE;
+                if (count < 0 || validSize + frameSize > channel.size()) {
+                    break;
+                }
+                ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, records, validSize + FRAME_HEADER_SIZE);
+                CRC32C checksum = new CRC32C();
+                checksum.update(records.array());
+                if (header.getInt(Integer.BYTES) != (int) checksum.getValue()) {
+                    break;
+                }
+                records.flip();
+                for (int i = 0; i < count; i++) {
+                    addRecord(records);
+                }
+                validSize += frameSize;
+            }
+            // a frame torn by a crash was never acknowledged, drop it
+            channel.truncate(validSize);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of ledger log");
+            }
+        }
+    }
+
+    private void applyRecord(ByteBuffer records) {
+        int id = accountKeys.intern(records.getLong(), records.getLong());
+        ledger.set(id, records.getInt(), records.getInt(), records.getLong());
+    }
+
+    private void addRecord(ByteBuffer records) {
+        int id = accountKeys.intern(records.getLong(), records.getLong());
+        ledger.set(id, Math.addExact(debitCount(id), records.getInt()),
+                Math.addExact(creditCount(id), records.getInt()),
+                Math.addExact(balance(id), records.getLong()));
+    }
+
+    private static void putRecord(ByteBuffer buffer, AccountData accountData) {
+        buffer.putLong(accountData.getAccountHigh())
+                .putLong(accountData.getAccountLow())
+                .putInt(accountData.getDebitCount())
+                .putInt(accountData.getCreditCount())
+                .putLong(accountData.getScaledBalance());
+    }
+
+    private FileChannel openWal(long walGeneration) throws IOException {
+        return FileChannel.open(walPath(walGeneration), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private Path walPath(long walGeneration) {
+        return directory.resolve(WAL_PREFIX + walGeneration + WAL_SUFFIX);
+    }
+}
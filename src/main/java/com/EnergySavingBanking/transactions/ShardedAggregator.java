@@ -0,0 +1,243 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Request scoped aggregation pipeline.
+ * Every transaction is split into a debit and a credit posting and each
+ * posting is routed to the shard owning the account (by account id, ids
+ * are dense and handed out in order of appearance, see AccountKeyTable).
+ * A shard has its own unsynchronized AccountLedger, its batches are chained
+ * one after another so only one worker touches a ledger at a time, while
+ * different shards run in parallel without any shared map or lock.
+ * Accounts never span shards, so the final report is a k-way merge of the
+ * sorted shards. Totals of whole chunks, see ChunkAggregate, are routed the
+ * same way. Skewed reports are better served by StripedAggregator.
+ */
+class ShardedAggregator implements TransactionAggregator {
+    private final Executor executor;
+    private final AccountKeyTable accountKeys;
+    private final AccountLedger[] ledgers;
+    private final CompletableFuture<?>[] shardTails;
+    private final Semaphore inFlightChunks;
+
+    public ShardedAggregator(AccountKeyTable accountKeys, int shardCount, int maxInFlightChunks, Executor executor) {
+        this.accountKeys = accountKeys;
+        this.executor = executor;
+        this.ledgers = new AccountLedger[shardCount];
+        this.shardTails = new CompletableFuture<?>[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            ledgers[i] = new AccountLedger();
+            shardTails[i] = CompletableFuture.completedFuture(null);
+        }
+        this.inFlightChunks = new Semaphore(maxInFlightChunks);
+    }
+
+    /**
+     * Partitions the chunk and queues every shard's postings behind the
+     * shard's previous batch. Blocks while maxInFlightChunks chunks are
+     * still waiting for a worker, so the reader cannot run ahead of them.
+     */
+    @Override
+    public void submitAsync(List<Transaction> chunk) {
+        submitAsync(partition(chunk));
+    }
+
+    /**
+     * Like submitAsync for the totals of a chunk, accounts are interned on the calling thread.
+     */
+    @Override
+    public void submitAsync(ChunkAggregate aggregate) {
+        submitAsync(partition(aggregate));
+    }
+
+    private void submitAsync(ShardBatch[] batches) {
+        inFlightChunks.acquireUninterruptibly();
+        CompletableFuture<?>[] stages = new CompletableFuture<?>[ledgers.length];
+        for (int i = 0; i < ledgers.length; i++) {
+            AccountLedger ledger = ledgers[i];
+            ShardBatch batch = batches[i];
+            shardTails[i] = shardTails[i].thenRunAsync(() -> batch.applyTo(ledger), executor);
+            stages[i] = shardTails[i];
+        }
+        CompletableFuture.allOf(stages).whenComplete((result, error) -> inFlightChunks.release());
+    }
+
+    /**
+     * Applies the chunk on the calling thread, used for chunks too small
+     * to be worth a hand-off. Pending shard batches are awaited first.
+     */
+    @Override
+    public void submitInline(List<Transaction> chunk) {
+        ShardBatch[] batches = partition(chunk);
+        awaitShards();
+        for (int i = 0; i < ledgers.length; i++) {
+            batches[i].applyTo(ledgers[i]);
+        }
+    }
+
+    /**
+     * @throws ArithmeticException if a balance or count of any shard overflowed
+     */
+    @Override
+    public AccountDataMergeIterator finish() {
+        awaitShards();
+        AccountData[][] sortedShards = new AccountData[ledgers.length][];
+        for (int i = 0; i < ledgers.length; i++) {
+            sortedShards[i] = toSortedAccountData(i);
+        }
+        return new AccountDataMergeIterator(sortedShards);
+    }
+
+    /**
+     * Like finish, and leaves the ledgers empty for accounts interned from scratch.
+     */
+    @Override
+    public AccountDataMergeIterator drain() {
+        AccountDataMergeIterator accountData = finish();
+        for (int i = 0; i < ledgers.length; i++) {
+            ledgers[i] = new AccountLedger();
+        }
+        return accountData;
+    }
+
+    private AccountData[] toSortedAccountData(int shard) {
+        AccountLedger ledger = ledgers[shard];
+        AccountData[] accountData = new AccountData[ledger.size()];
+        for (int slot = 0; slot < accountData.length; slot++) {
+            int id = slot * ledgers.length + shard;
+            accountData[slot] = new AccountData(accountKeys.high(id), accountKeys.low(id),
+                    ledger.getDebitCount(slot), ledger.getCreditCount(slot), ledger.getBalance(slot));
+        }
+        Arrays.sort(accountData);
+        return accountData;
+    }
+
+    private void awaitShards() {
+        try {
+            CompletableFuture.allOf(shardTails).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ArithmeticException) {
+                throw (ArithmeticException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private PostingBatch[] partition(List<Transaction> chunk) {
+        int expectedSize = (chunk.size() << 1) / ledgers.length + 1;
+        PostingBatch[] batches = new PostingBatch[ledgers.length];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = new PostingBatch(expectedSize);
+        }
+        int shardCount = ledgers.length;
+        for (Transaction transaction : chunk) {
+            int debitAccount = transaction.getDebitAccount();
+            int creditAccount = transaction.getCreditAccount();
+            // account id = slot * shardCount + shard
+            batches[debitAccount % shardCount].addDebit(debitAccount / shardCount, transaction.getAmount());
+            batches[creditAccount % shardCount].addCredit(creditAccount / shardCount, transaction.getAmount());
+        }
+        return batches;
+    }
+
+    private AggregateBatch[] partition(ChunkAggregate aggregate) {
+        int shardCount = ledgers.length;
+        AggregateBatch[] batches = new AggregateBatch[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            batches[i] = new AggregateBatch(aggregate, aggregate.size / shardCount + 1);
+        }
+        for (int i = 0; i < aggregate.size; i++) {
+            int account = accountKeys.intern(aggregate.highs[i], aggregate.lows[i]);
+            batches[account % shardCount].add(account / shardCount, i);
+        }
+        return batches;
+    }
+
+    private interface ShardBatch {
+        void applyTo(AccountLedger ledger);
+    }
+
+    /**
+     * Postings of one shard, a debit is stored as the complement of its slot,
+     * a credit as the slot itself. Amounts can't tell them apart, a positive
+     * amount below the scale (0.001) rounds to zero.
+     */
+    private static class PostingBatch implements ShardBatch {
+        private int[] slots;
+        private long[] amounts;
+        private int size;
+
+        PostingBatch(int capacity) {
+            this.slots = new int[capacity];
+            this.amounts = new long[capacity];
+        }
+
+        void addDebit(int slot, long amount) {
+            add(~slot, amount);
+        }
+
+        void addCredit(int slot, long amount) {
+            add(slot, amount);
+        }
+
+        private void add(int slot, long amount) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size << 1);
+                amounts = Arrays.copyOf(amounts, size << 1);
+            }
+            slots[size] = slot;
+            amounts[size++] = amount;
+        }
+
+        @Override
+        public void applyTo(AccountLedger ledger) {
+            for (int i = 0; i < size; i++) {
+                if (slots[i] < 0) {
+                    ledger.debit(~slots[i], amounts[i]);
+                } else {
+                    ledger.credit(slots[i], amounts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accounts of a chunk aggregate owned by one shard, by slot and index into the aggregate.
+     */
+    private static class AggregateBatch implements ShardBatch {
+        private final ChunkAggregate aggregate;
+        private int[] slots;
+        private int[] indexes;
+        private int size;
+
+        AggregateBatch(ChunkAggregate aggregate, int capacity) {
+            this.aggregate = aggregate;
+            this.slots = new int[capacity];
+            this.indexes = new int[capacity];
+        }
+
+        void add(int slot, int index) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size << 1);
+                indexes = Arrays.copyOf(indexes, size << 1);
+            }
+            slots[size] = slot;
+            indexes[size++] = index;
+        }
+
+        @Override
+        public void applyTo(AccountLedger ledger) {
+            for (int i = 0; i < size; i++) {
+                int index = indexes[i];
+                ledger.add(slots[i], aggregate.debitCounts[index], aggregate.creditCounts[index],
+                        aggregate.balances[index]);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.EnergySavingBanking.transactions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External aggregation for requests with more accounts than fit in memory.
+ * Whenever the in-memory aggregation grows past its threshold it is drained
+ * into an account-sorted run file and starts over. At the end the runs are
+ * k-way merged, partial aggregates of an account found in several runs are
+ * combined (counts and balances added, overflow checked), and the merged
+ * report is written to one more run, so its size is known before it is sent.
+ * Heap use is bounded by the threshold plus one cursor per run.
+ */
+class SpilledRuns implements Closeable {
+    private final Path directory;
+    private final List<AccountRunFile> runs = new ArrayList<>();
+
+    SpilledRuns(String directory) {
+        this.directory = Paths.get(directory);
+    }
+
+    boolean isEmpty() {
+        return runs.isEmpty();
+    }
+
+    void spill(Iterator<AccountData> sortedAccounts) throws IOException {
+        AccountRunFile run = AccountRunFile.create(directory);
+        runs.add(run);
+        while (sortedAccounts.hasNext()) {
+            run.append(sortedAccounts.next());
+        }
+    }
+
+    /**
+     * @throws ArithmeticException if a combined count or balance overflows
+     */
+    AccountDataIterator merge() throws IOException {
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(runs.size());
+        for (AccountRunFile run : runs) {
+            AccountRunFile.Reader reader = run.reader();
+            if (reader.hasNext()) {
+                heap.add(new Cursor(reader));
+            }
+        }
+
+        AccountRunFile merged = AccountRunFile.create(directory);
+        runs.add(merged);
+        while (!heap.isEmpty()) {
+            Cursor cursor = heap.poll();
+            AccountData accountData = cursor.current;
+            int debitCount = accountData.getDebitCount();
+            int creditCount = accountData.getCreditCount();
+            long balance = accountData.getScaledBalance();
+            advance(heap, cursor);
+            while (!heap.isEmpty() && heap.peek().current.compareTo(accountData) == 0) {
+                Cursor sameAccount = heap.poll();
+                debitCount = Math.addExact(debitCount, sameAccount.current.getDebitCount());
+                creditCount = Math.addExact(creditCount, sameAccount.current.getCreditCount());
+                balance = Math.addExact(balance, sameAccount.current.getScaledBalance());
+                advance(heap, sameAccount);
+            }
+            merged.append(new AccountData(accountData.getAccountHigh(), accountData.getAccountLow(),
+                    debitCount, creditCount, balance));
+        }
+        return merged.reader();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (AccountRunFile run : runs) {
+            try {
+                run.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        runs.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void advance(PriorityQueue<Cursor> heap, Cursor cursor) {
+        if (cursor.reader.hasNext()) {
+            cursor.current = cursor.reader.next();
+            heap.add(cursor);
+        }
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final AccountRunFile.Reader reader;
+        private AccountData current;
+
+        Cursor(AccountRunFile.Reader reader) {
+            this.reader = reader;
+            this.current = reader.next();
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return current.compareTo(other.current);
+        }
+    }
+}
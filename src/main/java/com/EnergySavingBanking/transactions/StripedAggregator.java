@@ -0,0 +1,157 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Aggregation for skewed reports, where a few hot accounts get most of the
+ * postings. ShardedAggregator gives an account to one shard, so the shard of
+ * a hot account ends up doing most of the work while the others idle.
+ * Here any worker takes any chunk: it borrows one of the stripes, private
+ * AccountLedgers indexed by account id like the cells of a LongAdder, from
+ * a lock-free queue, applies the whole chunk to it and hands it back.
+ * No account is owned, locked or CAS updated, so throughput scales with
+ * cores whatever the skew. The stripes are folded exactly, with the same
+ * overflow checks, when the report is taken, which costs stripes x accounts,
+ * so this suits reports with fewer accounts than transactions.
+ * There are as many stripes as chunks may be in flight, a worker always finds one.
+ */
+class StripedAggregator implements TransactionAggregator {
+    private final Executor executor;
+    private final AccountKeyTable accountKeys;
+    private final Semaphore inFlightChunks;
+    private final int stripeCount;
+    private final Queue<AccountLedger> freeStripes = new ConcurrentLinkedQueue<>();
+    private List<AccountLedger> stripes = new ArrayList<>();
+    private List<CompletableFuture<?>> pending = new ArrayList<>();
+
+    public StripedAggregator(AccountKeyTable accountKeys, int maxInFlightChunks, Executor executor) {
+        this.accountKeys = accountKeys;
+        this.executor = executor;
+        this.inFlightChunks = new Semaphore(maxInFlightChunks);
+        this.stripeCount = stripeCount(maxInFlightChunks);
+        resetStripes();
+    }
+
+    /**
+     * Every stripe is a full AccountLedger that grows to every account it sees,
+     * the heap of a report's accounts grows with this count.
+     */
+    static int stripeCount(int maxInFlightChunks) {
+        // the request thread applies inline chunks with one more
+        return maxInFlightChunks + 1;
+    }
+
+    @Override
+    public void submitInline(List<Transaction> chunk) {
+        applyOnStripe(postings(chunk));
+    }
+
+    @Override
+    public void submitAsync(List<Transaction> chunk) {
+        submitAsync(postings(chunk));
+    }
+
+    @Override
+    public void submitAsync(ChunkAggregate aggregate) {
+        int[] accounts = new int[aggregate.size];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = accountKeys.intern(aggregate.highs[i], aggregate.lows[i]);
+        }
+        submitAsync(stripe -> {
+            for (int i = 0; i < accounts.length; i++) {
+                stripe.add(accounts[i], aggregate.debitCounts[i], aggregate.creditCounts[i], aggregate.balances[i]);
+            }
+        });
+    }
+
+    @Override
+    public AccountDataMergeIterator finish() {
+        awaitPending();
+        AccountData[] accountData = new AccountData[accountKeys.size()];
+        for (int id = 0; id < accountData.length; id++) {
+            int debitCount = 0;
+            int creditCount = 0;
+            long balance = 0;
+            for (AccountLedger stripe : stripes) {
+                if (id < stripe.size()) {
+                    debitCount = Math.addExact(debitCount, stripe.getDebitCount(id));
+                    creditCount = Math.addExact(creditCount, stripe.getCreditCount(id));
+                    balance = Math.addExact(balance, stripe.getBalance(id));
+                }
+            }
+            accountData[id] = new AccountData(accountKeys.high(id), accountKeys.low(id), debitCount, creditCount,
+                    balance);
+        }
+        Arrays.sort(accountData);
+        return new AccountDataMergeIterator(new AccountData[][]{accountData});
+    }
+
+    @Override
+    public AccountDataMergeIterator drain() {
+        AccountDataMergeIterator accountData = finish();
+        resetStripes();
+        return accountData;
+    }
+
+    private void submitAsync(StripeUpdate update) {
+        inFlightChunks.acquireUninterruptibly();
+        pending.add(CompletableFuture.runAsync(() -> applyOnStripe(update), executor)
+                .whenComplete((result, error) -> inFlightChunks.release()));
+    }
+
+    private void applyOnStripe(StripeUpdate update) {
+        AccountLedger stripe = freeStripes.poll();
+        try {
+            update.applyTo(stripe);
+        } finally {
+            freeStripes.add(stripe);
+        }
+    }
+
+    // ids are resolved on the request thread, the table is not thread safe
+    private static StripeUpdate postings(List<Transaction> chunk) {
+        Transaction[] transactions = chunk.toArray(new Transaction[0]);
+        return stripe -> {
+            for (Transaction transaction : transactions) {
+                stripe.debit(transaction.getDebitAccount(), transaction.getAmount());
+                stripe.credit(transaction.getCreditAccount(), transaction.getAmount());
+            }
+        };
+    }
+
+    private void awaitPending() {
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ArithmeticException) {
+                throw (ArithmeticException) e.getCause();
+            }
+            throw e;
+        } finally {
+            pending = new ArrayList<>();
+        }
+    }
+
+    private void resetStripes() {
+        freeStripes.clear();
+        stripes = new ArrayList<>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            AccountLedger stripe = new AccountLedger();
+            stripes.add(stripe);
+            freeStripes.add(stripe);
+        }
+    }
+
+    @FunctionalInterface
+    private interface StripeUpdate {
+        void applyTo(AccountLedger stripe);
+    }
+}
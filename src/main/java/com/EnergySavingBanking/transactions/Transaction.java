@@ -4,32 +4,36 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 
 public class Transaction {
-    private String debitAccount;
-    private String creditAccount;
-    private BigDecimal amount;
+    // dense account ids, see AccountKeyTable
+    private int debitAccount;
+    private int creditAccount;
+    private long amount;
 
-    private static final int SCALE = 2;
     private static final RoundingMode ROUNDING_MODE = RoundingMode.HALF_EVEN;
 
-    public Transaction(String debitAccount, String creditAccount, BigDecimal amount) {
+    public Transaction(int debitAccount, int creditAccount, long amount) {
         this.debitAccount = debitAccount;
         this.creditAccount = creditAccount;
-        this.amount = setScaledValue(amount);
+        this.amount = amount;
     }
 
-    public String getDebitAccount() {
+    public int getDebitAccount() {
         return debitAccount;
     }
 
-    public String getCreditAccount() {
+    public int getCreditAccount() {
         return creditAccount;
     }
 
-    public BigDecimal getAmount() {
+    // amount scaled by 10^AccountData.SCALE, e.g. 10.90 is stored as 1090
+    public long getAmount() {
         return amount;
     }
 
-    private BigDecimal setScaledValue(BigDecimal value) {
-        return value.setScale(SCALE, ROUNDING_MODE);
+    /**
+     * @throws ArithmeticException if the scaled amount does not fit into a long
+     */
+    public static long scaleAmount(BigDecimal value) {
+        return value.setScale(AccountData.SCALE, ROUNDING_MODE).unscaledValue().longValueExact();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,36 @@
+package com.EnergySavingBanking.transactions;
+
+import java.util.List;
+
+/**
+ * Request scoped aggregation of transactions into per account totals.
+ * Chunks are submitted by the request reader, which also owns the
+ * AccountKeyTable, and the report is taken once all chunks are in.
+ */
+interface TransactionAggregator {
+
+    /**
+     * Applies the chunk on the calling thread, for chunks too small to be worth a hand-off.
+     */
+    void submitInline(List<Transaction> chunk);
+
+    /**
+     * Hands the chunk to the workers, blocks while too many chunks are still waiting for one.
+     */
+    void submitAsync(List<Transaction> chunk);
+
+    /**
+     * Like submitAsync for the totals of a chunk, accounts are interned on the calling thread.
+     */
+    void submitAsync(ChunkAggregate aggregate);
+
+    /**
+     * @throws ArithmeticException if a balance or count overflowed
+     */
+    AccountDataMergeIterator finish();
+
+    /**
+     * Like finish, and leaves the totals empty for accounts interned from scratch.
+     */
+    AccountDataMergeIterator drain();
+}
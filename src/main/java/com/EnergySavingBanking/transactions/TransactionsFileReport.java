@@ -0,0 +1,252 @@
+package com.EnergySavingBanking.transactions;
+
+import com.EnergySavingBanking.JsonResponseWriter;
+import com.EnergySavingBanking.ParallelArrayDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Offline transaction report of a file in the /transactions/report request
+ * format, written to a file in its response format, without the HTTP round trip.
+ * The input is memory mapped and split on element boundaries like
+ * ParallelArrayDecoder does, every segment is parsed and aggregated on its own
+ * worker into a sorted report, and the segment reports are merged with the
+ * totals of accounts found in several segments combined.
+ * Any segment that fails, on invalid input or an overflowing partial total,
+ * makes the whole file go through the serial parser instead, which reports
+ * the first error in input order exactly like the endpoint.
+ * The merged report is streamed to a FileChannel, output memory stays constant.
+ */
+public final class TransactionsFileReport {
+
+    private static final String FILE_TOO_LARGE_MESSAGE = "Input file too large to map, at most 2 GB.";
+    private static final byte[] ARRAY_START = {'['};
+    private static final byte[] ARRAY_END = {']'};
+
+    private TransactionsFileReport() {
+    }
+
+    /**
+     * @throws IllegalArgumentException on invalid transactions, with the message the endpoint answers with
+     * @throws IOException              on malformed JSON and I/O errors
+     */
+    public static void write(Path input, Path output, Executor executor) throws IOException {
+        try (FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ)) {
+            if (inputChannel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(FILE_TOO_LARGE_MESSAGE);
+            }
+            MappedByteBuffer json = inputChannel.map(FileChannel.MapMode.READ_ONLY, 0, inputChannel.size());
+            try {
+                writeReport(aggregate(json, executor), output);
+            } catch (ArithmeticException e) {
+                // combined segment totals can overflow where the running totals of the serial order do not
+                writeSerialReport(json, output);
+            }
+        }
+    }
+
+    private static void writeSerialReport(ByteBuffer json, Path output) throws IOException {
+        try {
+            writeReport(aggregateSerially(json), output);
+        } catch (ArithmeticException e) {
+            Files.deleteIfExists(output);
+            throw new IllegalArgumentException(TransactionsReportHandler.BALANCE_OUT_OF_RANGE_MESSAGE);
+        }
+    }
+
+    private static void writeReport(Iterator<AccountData> accountData, Path output) throws IOException {
+        try (FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             OutputStream outputStream = Channels.newOutputStream(outputChannel);
+             JsonResponseWriter report = JsonResponseWriter.streaming(outputStream)) {
+            TransactionsReportHandler.writeJsonResponse(accountData, report);
+        }
+    }
+
+    private static Iterator<AccountData> aggregate(ByteBuffer json, Executor executor) throws IOException {
+        int start = 0;
+        int end = json.limit();
+        while (start < end && isWhitespace(json.get(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(json.get(end - 1))) {
+            end--;
+        }
+        if (end - start < 2 || json.get(start) != '[' || json.get(end - 1) != ']') {
+            return aggregateSerially(json);
+        }
+
+        int[] segmentEnds = ParallelArrayDecoder.split(json, start + 1, end - 1);
+        if (segmentEnds.length == 1) {
+            return aggregateSerially(json);
+        }
+        List<CompletableFuture<AccountDataMergeIterator>> segments = new ArrayList<>(segmentEnds.length);
+        int segmentStart = start + 1;
+        for (int segmentEnd : segmentEnds) {
+            ByteBuffer segment = json.slice(segmentStart, segmentEnd - segmentStart);
+            segments.add(CompletableFuture.supplyAsync(() -> aggregateSegment(segment), executor));
+            // the next segment starts after the comma
+            segmentStart = segmentEnd + 1;
+        }
+
+        List<AccountDataMergeIterator> sortedSegments = new ArrayList<>(segments.size());
+        try {
+            for (CompletableFuture<AccountDataMergeIterator> segment : segments) {
+                sortedSegments.add(segment.join());
+            }
+        } catch (CompletionException e) {
+            return aggregateSerially(json);
+        }
+        return new CombiningMergeIterator(sortedSegments);
+    }
+
+    // the elements of a segment, wrapped into an array of their own
+    private static AccountDataMergeIterator aggregateSegment(ByteBuffer segment) {
+        try (Reader json = reader(new SequenceInputStream(new ByteArrayInputStream(ARRAY_START),
+                new SequenceInputStream(new ByteBufferInputStream(segment), new ByteArrayInputStream(ARRAY_END))))) {
+            AccountDataMergeIterator accountData = aggregate(json);
+            if (!accountData.hasNext()) {
+                // an empty segment comes from a stray comma, the serial parser rejects it
+                throw new IllegalArgumentException();
+            }
+            return accountData;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static Iterator<AccountData> aggregateSerially(ByteBuffer json) throws IOException {
+        try (Reader reader = reader(new ByteBufferInputStream(json.duplicate().rewind()))) {
+            return aggregate(reader);
+        }
+    }
+
+    private static AccountDataMergeIterator aggregate(Reader json) throws IOException {
+        AccountKeyTable accountKeys = new AccountKeyTable();
+        ShardedAggregator aggregator = new ShardedAggregator(accountKeys, 1, 1, Runnable::run);
+        TransactionsReportHandler.parseTransactionsFromJson(json, accountKeys, aggregator::submitInline);
+        return aggregator.finish();
+    }
+
+    private static Reader reader(InputStream input) {
+        return new InputStreamReader(input, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * K-way merge of sorted reports whose accounts may overlap, partial totals
+     * of an account are combined (counts and balances added, overflow checked).
+     */
+    private static class CombiningMergeIterator implements Iterator<AccountData> {
+        private final PriorityQueue<Cursor> heap;
+
+        CombiningMergeIterator(List<AccountDataMergeIterator> sortedReports) {
+            this.heap = new PriorityQueue<>(Math.max(1, sortedReports.size()));
+            for (AccountDataMergeIterator report : sortedReports) {
+                if (report.hasNext()) {
+                    heap.add(new Cursor(report));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public AccountData next() {
+            Cursor cursor = heap.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            AccountData accountData = cursor.current;
+            int debitCount = accountData.getDebitCount();
+            int creditCount = accountData.getCreditCount();
+            long balance = accountData.getScaledBalance();
+            advance(cursor);
+            while (!heap.isEmpty() && heap.peek().current.compareTo(accountData) == 0) {
+                Cursor sameAccount = heap.poll();
+                debitCount = Math.addExact(debitCount, sameAccount.current.getDebitCount());
+                creditCount = Math.addExact(creditCount, sameAccount.current.getCreditCount());
+                balance = Math.addExact(balance, sameAccount.current.getScaledBalance());
+                advance(sameAccount);
+            }
+            return new AccountData(accountData.getAccountHigh(), accountData.getAccountLow(), debitCount,
+                    creditCount, balance);
+        }
+
+        private void advance(Cursor cursor) {
+            if (cursor.report.hasNext()) {
+                cursor.current = cursor.report.next();
+                heap.add(cursor);
+            }
+        }
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final AccountDataMergeIterator report;
+        private AccountData current;
+
+        Cursor(AccountDataMergeIterator report) {
+            this.report = report;
+            this.current = report.next();
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return current.compareTo(other.current);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
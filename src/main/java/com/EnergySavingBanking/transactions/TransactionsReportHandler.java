@@ -1,140 +1,396 @@
 package com.EnergySavingBanking.transactions;
 
 import com.EnergySavingBanking.AbstractHandler;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
+import com.EnergySavingBanking.ApplicationProperties;
+import com.EnergySavingBanking.BatchItemHandler;
+import com.EnergySavingBanking.BinaryCodec;
+import com.EnergySavingBanking.JsonResponseWriter;
+import com.EnergySavingBanking.RequestBody;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.function.Consumer;
 
-public class TransactionsReportHandler extends AbstractHandler {
+/**
+ * Transactions are read with a pull parser straight from the request stream,
+ * so chunks are handed to the workers while the body is still arriving.
+ * The number of chunks waiting for a worker is bounded, which keeps peak
+ * memory proportional to the chunk size instead of the payload size.
+ * All aggregation state is request scoped, see ShardedAggregator, or
+ * StripedAggregator with transactions.aggregation=STRIPED.
+ * Accounts come out of the merge in order and are written one by one, large
+ * reports and NDJSON ones (Accept: application/x-ndjson) go straight to the
+ * response stream, so output memory stays constant.
+ * Requests with more accounts than transactions.spillThresholdBytes allows
+ * are aggregated out of core, see SpilledRuns.
+ * With transactions.chunkCache.maxBytes set, totals of chunks seen in earlier
+ * requests are merged from the ChunkAggregateCache instead of aggregated again.
+ */
+public class TransactionsReportHandler extends AbstractHandler
+        implements BatchItemHandler<ParsedTransactions, AccountDataIterator> {
     private static final String INVALID_DEBIT_ACCOUNT_MESSAGE = "Invalid debit account number.";
     private static final String INVALID_CREDIT_ACCOUNT_MESSAGE = "Invalid credit account number.";
     private static final String INVALID_AMOUNT_MESSAGE = "Invalid amount value.";
-    private static final int ACCOUNT_NUMBER_LENGTH = 26;
+    static final String BALANCE_OUT_OF_RANGE_MESSAGE = "Balance out of range.";
     private static final int CHUNK_SIZE = 10_000;
+    private static final int SHARD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_IN_FLIGHT_CHUNKS = Runtime.getRuntime().availableProcessors();
+    private static final boolean STRIPED_AGGREGATION = "STRIPED".equalsIgnoreCase(
+            ApplicationProperties.getString("transactions.aggregation", "SHARDED"));
+    // rough heap per account while aggregating: key table, ledger and the sorted AccountData
+    private static final int ACCOUNT_MEMORY_BYTES = 128;
+    // counts and balance of an account in one more ledger, twice for the slack of doubling arrays
+    private static final int LEDGER_ACCOUNT_MEMORY_BYTES = 32;
+    // STRIPED keeps every account in each of its ledgers instead of one
+    private static final int AGGREGATION_ACCOUNT_MEMORY_BYTES = STRIPED_AGGREGATION
+            ? ACCOUNT_MEMORY_BYTES + StripedAggregator.stripeCount(MAX_IN_FLIGHT_CHUNKS) * LEDGER_ACCOUNT_MEMORY_BYTES
+            : ACCOUNT_MEMORY_BYTES;
+    private static final long SPILL_THRESHOLD_BYTES = ApplicationProperties.getLong(
+            "transactions.spillThresholdBytes", 0);
+    private static final int SPILL_THRESHOLD_ACCOUNTS = (int) Math.min(Integer.MAX_VALUE,
+            (SPILL_THRESHOLD_BYTES > 0 ? SPILL_THRESHOLD_BYTES : Runtime.getRuntime().maxMemory() / 4)
+                    / AGGREGATION_ACCOUNT_MEMORY_BYTES);
+    private static final String SPILL_DIRECTORY = ApplicationProperties.getString("transactions.spillDirectory",
+            System.getProperty("java.io.tmpdir"));
+    private static final int CHUNKED_RESPONSE_MIN_ACCOUNTS =
+            ApplicationProperties.getInt("transactions.chunkedResponseMinAccounts", 100_000);
+    // {"account":"<26 digits>","debitCount":10,"creditCount":10,"balance":-12345.67},
+    private static final int ESTIMATED_ACCOUNT_JSON_SIZE = 90;
+    private static final int BINARY_TRANSACTION_SIZE = 5 * Long.BYTES;
+    private static final int BINARY_ACCOUNT_SIZE = 3 * Long.BYTES + 2 * Integer.BYTES;
 
-    private List<CompletableFuture<Void>> futures = new ArrayList<>();
+    private final PersistentLedger ledger;
 
     public TransactionsReportHandler(ExecutorService executorService) {
+        this(executorService, null);
+    }
+
+    /**
+     * With a ledger every batch is added to it and the report holds the
+     * cumulative state of the batch's accounts instead of the batch alone.
+     */
+    public TransactionsReportHandler(ExecutorService executorService, PersistentLedger ledger) {
         super(executorService);
+        this.ledger = ledger;
+    }
+
+    @Override
+    protected void handleJsonRequest(HttpExchange exchange) throws IOException, InterruptedException {
+        try (InputStream input = exchange.getRequestBody();
+             Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+            processTransactions((accountKeys, chunkProcessor) ->
+                    parseTransactionsFromJson(reader, accountKeys, chunkProcessor), exchange, false);
+        }
     }
 
     @Override
     protected void processRequestData(String requestBody, HttpExchange exchange)
             throws IOException, IllegalArgumentException, InterruptedException {
-        Map<String, AccountData> accountDataMap = new ConcurrentSkipListMap<>(); // Change this line
-        try {
-            parseTransactionsFromJson(requestBody, chunk -> {
-                if (chunk.size() < CHUNK_SIZE) {
-                    processChunk(accountDataMap, chunk);
+        processTransactions((accountKeys, chunkProcessor) ->
+                parseTransactionsFromJson(new StringReader(requestBody), accountKeys, chunkProcessor), exchange, false);
+    }
+
+    /**
+     * Binary layout, see BinaryCodec:
+     * request int32 count, count x (int64 debit high, int64 debit low, int64 credit high,
+     * int64 credit low, int64 amount), account halves as in AccountKey, amount scaled by 10^AccountData.SCALE;
+     * response int32 count, count x (int64 account high, int64 account low, int32 debitCount,
+     * int32 creditCount, int64 balance scaled by 10^AccountData.SCALE), sorted by account.
+     * The request is read from the stream chunk by chunk like the JSON one.
+     */
+    @Override
+    protected void handleBinaryRequest(HttpExchange exchange) throws IOException, InterruptedException {
+        try (InputStream input = exchange.getRequestBody()) {
+            processTransactions((accountKeys, chunkProcessor) ->
+                    parseTransactionsFromBinary(input, accountKeys, chunkProcessor), exchange, true);
+        }
+    }
+
+    private void processTransactions(TransactionParser parser, HttpExchange exchange, boolean binary)
+            throws IOException, InterruptedException {
+        AccountKeyTable accountKeys = new AccountKeyTable();
+        TransactionAggregator aggregator = STRIPED_AGGREGATION
+                ? new StripedAggregator(accountKeys, MAX_IN_FLIGHT_CHUNKS, executorService)
+                : new ShardedAggregator(accountKeys, SHARD_COUNT, MAX_IN_FLIGHT_CHUNKS, executorService);
+        ChunkAggregateCache chunkCache = ChunkAggregateCache.shared();
+        ContentDefinedChunker chunker = chunkCache == null ? null
+                : new ContentDefinedChunker(accountKeys, chunkCache, aggregator, executorService);
+        try (SpilledRuns spilledRuns = new SpilledRuns(SPILL_DIRECTORY)) {
+            AccountDataIterator accountData;
+            try {
+                parser.parse(accountKeys, chunk -> {
+                    if (chunker != null) {
+                        chunker.accept(chunk);
+                    } else if (chunk.size() < CHUNK_SIZE) {
+                        aggregator.submitInline(chunk);
+                    } else {
+                        aggregator.submitAsync(chunk);
+                    }
+                    // only between chunks, no id of the table is in flight then
+                    if (accountKeys.size() >= SPILL_THRESHOLD_ACCOUNTS) {
+                        spilledRuns.spill(aggregator.drain());
+                        accountKeys.clear();
+                    }
+                });
+                if (chunker != null) {
+                    chunker.finish();
+                }
+                // chunks are aggregated while parsing goes on, compute is only the final merge
+                markParsed();
+                if (spilledRuns.isEmpty()) {
+                    accountData = aggregator.finish();
                 } else {
-                    processChunkAsync(accountDataMap, chunk);
+                    spilledRuns.spill(aggregator.finish());
+                    accountData = spilledRuns.merge();
                 }
-            });
-        } catch (IllegalArgumentException e) {
-            sendErrorResponse(exchange, e.getMessage());
-            return;
+                if (ledger != null) {
+                    accountData = ledger.apply(accountData);
+                }
+                markComputed();
+            } catch (IllegalArgumentException e) {
+                // parsing stops at the first invalid transaction, most of the body may still be unread
+                RequestBody.discardRest(exchange);
+                sendErrorResponse(exchange, e.getMessage());
+                return;
+            } catch (ArithmeticException e) {
+                RequestBody.discardRest(exchange);
+                sendErrorResponse(exchange, BALANCE_OUT_OF_RANGE_MESSAGE);
+                return;
+            }
+
+            if (binary) {
+                sendBinaryReport(exchange, accountData);
+            } else {
+                sendReport(exchange, accountData);
+            }
         }
+    }
 
-        // Wait for all tasks to complete
-        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    static void parseTransactionsFromJson(Reader json, AccountKeyTable accountKeys,
+            ChunkProcessor chunkProcessor)
+            throws IOException, IllegalArgumentException {
+        List<Transaction> transactions = new ArrayList<>(CHUNK_SIZE);
 
-        Collection<AccountData> accountData = accountDataMap.values();
+        // not closed here, the caller owns the reader and drains the rest of the body on an error first
+        JsonReader jsonReader = new JsonReader(json);
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            transactions.add(readTransaction(jsonReader, accountKeys));
 
-        String jsonResponse = createJsonResponse(accountData);
+            if (transactions.size() >= CHUNK_SIZE) {
+                chunkProcessor.accept(transactions);
+                transactions = new ArrayList<>(CHUNK_SIZE);
+            }
+        }
+        jsonReader.endArray();
 
-        sendJsonResponse(exchange, jsonResponse);
+        if (!transactions.isEmpty()) {
+            chunkProcessor.accept(transactions);
+        }
     }
 
-    private void parseTransactionsFromJson(String json, Consumer<List<Transaction>> chunkProcessor)
-            throws IllegalArgumentException {
-        List<Transaction> transactions = new ArrayList<>();
-        Gson gson = new Gson();
+    private void parseTransactionsFromBinary(InputStream input, AccountKeyTable accountKeys,
+            ChunkProcessor chunkProcessor)
+            throws IOException, IllegalArgumentException {
+        int count = BinaryCodec.readInt(BinaryCodec.wrap(input.readNBytes(Integer.BYTES)));
+        if (count < 0) {
+            throw new IllegalArgumentException(BinaryCodec.INVALID_LENGTH_MESSAGE);
+        }
+        byte[] block = new byte[Math.min(count, CHUNK_SIZE) * BINARY_TRANSACTION_SIZE];
+
+        for (int remaining = count; remaining > 0; ) {
+            int chunkSize = Math.min(remaining, CHUNK_SIZE);
+            int blockSize = chunkSize * BINARY_TRANSACTION_SIZE;
+            if (input.readNBytes(block, 0, blockSize) < blockSize) {
+                throw new IllegalArgumentException(BinaryCodec.TRUNCATED_MESSAGE);
+            }
+            ByteBuffer records = BinaryCodec.wrap(block);
+            List<Transaction> transactions = new ArrayList<>(chunkSize);
+            for (int i = 0; i < chunkSize; i++) {
+                transactions.add(readBinaryTransaction(records, accountKeys));
+            }
+            chunkProcessor.accept(transactions);
+            remaining -= chunkSize;
+        }
+    }
 
-        JsonArray jsonArray = gson.fromJson(json, JsonArray.class);
+    private static Transaction readBinaryTransaction(ByteBuffer records, AccountKeyTable accountKeys) {
+        long debitHigh = records.getLong();
+        long debitLow = records.getLong();
+        long creditHigh = records.getLong();
+        long creditLow = records.getLong();
+        long amount = records.getLong();
 
-        for (int i = 0; i < jsonArray.size(); i++) {
-            JsonObject jsonObject = jsonArray.get(i).getAsJsonObject();
-            String debitAccount = jsonObject.get("debitAccount").getAsString();
-            String creditAccount = jsonObject.get("creditAccount").getAsString();
-            BigDecimal amount = jsonObject.get("amount").getAsBigDecimal();
+        if (!AccountKey.isValid(debitHigh, debitLow)) {
+            throw new IllegalArgumentException(INVALID_DEBIT_ACCOUNT_MESSAGE);
+        }
 
-            if (debitAccount.length() != ACCOUNT_NUMBER_LENGTH) {
-                throw new IllegalArgumentException(INVALID_DEBIT_ACCOUNT_MESSAGE);
-            }
+        if (!AccountKey.isValid(creditHigh, creditLow)) {
+            throw new IllegalArgumentException(INVALID_CREDIT_ACCOUNT_MESSAGE);
+        }
 
-            if (creditAccount.length() != ACCOUNT_NUMBER_LENGTH) {
-                throw new IllegalArgumentException(INVALID_CREDIT_ACCOUNT_MESSAGE);
-            }
+        if (amount <= 0) {
+            throw new IllegalArgumentException(INVALID_AMOUNT_MESSAGE);
+        }
 
-            if (amount.compareTo(BigDecimal.ZERO) <= 0) {
-                throw new IllegalArgumentException(INVALID_AMOUNT_MESSAGE);
-            }
+        return new Transaction(accountKeys.intern(debitHigh, debitLow), accountKeys.intern(creditHigh, creditLow),
+                amount);
+    }
 
-            transactions.add(new Transaction(debitAccount, creditAccount, amount));
+    private static Transaction readTransaction(JsonReader jsonReader, AccountKeyTable accountKeys)
+            throws IOException {
+        String debitAccount = null;
+        String creditAccount = null;
+        BigDecimal amount = null;
 
-            if (transactions.size() >= CHUNK_SIZE || i == jsonArray.size() - 1) {
-                chunkProcessor.accept(transactions);
-                transactions = new ArrayList<>();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            switch (jsonReader.nextName()) {
+                case "debitAccount" -> debitAccount = jsonReader.nextString();
+                case "creditAccount" -> creditAccount = jsonReader.nextString();
+                case "amount" -> amount = new BigDecimal(jsonReader.nextString());
+                default -> jsonReader.skipValue();
             }
         }
+        jsonReader.endObject();
+
+        return toTransaction(debitAccount, creditAccount, amount, accountKeys);
     }
 
-    private void processChunkAsync(Map<String, AccountData> accountDataMap, List<Transaction> chunk) {
-        CompletableFuture<Void> future = CompletableFuture.runAsync(() -> processChunk(accountDataMap, chunk),
-                executorService);
-        futures.add(future);
+    private static Transaction toTransaction(String debitAccount, String creditAccount, BigDecimal amount,
+            AccountKeyTable accountKeys) throws IllegalArgumentException {
+        if (debitAccount == null || !AccountKey.isValid(debitAccount)) {
+            throw new IllegalArgumentException(INVALID_DEBIT_ACCOUNT_MESSAGE);
+        }
+
+        if (creditAccount == null || !AccountKey.isValid(creditAccount)) {
+            throw new IllegalArgumentException(INVALID_CREDIT_ACCOUNT_MESSAGE);
+        }
+
+        if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
+            throw new IllegalArgumentException(INVALID_AMOUNT_MESSAGE);
+        }
+
+        long scaledAmount;
+        try {
+            scaledAmount = Transaction.scaleAmount(amount);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(INVALID_AMOUNT_MESSAGE);
+        }
+
+        int debitId = accountKeys.intern(AccountKey.high(debitAccount), AccountKey.low(debitAccount));
+        int creditId = accountKeys.intern(AccountKey.high(creditAccount), AccountKey.low(creditAccount));
+        return new Transaction(debitId, creditId, scaledAmount);
     }
 
-    private void processChunk(Map<String, AccountData> accountDataMap, List<Transaction> chunk) {
-        for (Transaction transaction : chunk) {
-            String debitAccount = transaction.getDebitAccount();
-            String creditAccount = transaction.getCreditAccount();
-            BigDecimal amount = transaction.getAmount();
+    @Override
+    public ParsedTransactions parseItem(JsonElement body) throws IllegalArgumentException {
+        AccountKeyTable accountKeys = new AccountKeyTable();
+        List<Transaction> transactions = new ArrayList<>();
+        for (JsonElement element : body.getAsJsonArray()) {
+            JsonObject transaction = element.getAsJsonObject();
+            transactions.add(toTransaction(stringOrNull(transaction, "debitAccount"),
+                    stringOrNull(transaction, "creditAccount"),
+                    transaction.has("amount") ? new BigDecimal(transaction.get("amount").getAsString()) : null,
+                    accountKeys));
+        }
+        return new ParsedTransactions(accountKeys, transactions);
+    }
 
-            // Update debit account
-            AccountData debitAccountData = accountDataMap.computeIfAbsent(debitAccount, k -> new AccountData(k));
-            synchronized (debitAccountData) {
-                debitAccountData.incrementDebitCount();
-                debitAccountData.subtractFromBalance(amount);
-            }
+    /**
+     * Batch items are small, they are aggregated on the calling worker in a single shard.
+     */
+    @Override
+    public AccountDataIterator computeItem(ParsedTransactions request) throws IllegalArgumentException {
+        ShardedAggregator aggregator = new ShardedAggregator(request.accountKeys, 1, 1, executorService);
+        try {
+            aggregator.submitInline(request.transactions);
+            return aggregator.finish();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(BALANCE_OUT_OF_RANGE_MESSAGE);
+        }
+    }
+
+    @Override
+    public void writeItem(AccountDataIterator accountData, JsonResponseWriter writer) throws IOException {
+        writeJsonResponse(accountData, writer);
+    }
+
+    private static String stringOrNull(JsonObject jsonObject, String name) {
+        return jsonObject.has(name) ? jsonObject.get(name).getAsString() : null;
+    }
+
+    private void sendBinaryReport(HttpExchange exchange, AccountDataIterator accountData) throws IOException {
+        ByteBuffer response = BinaryCodec.allocate(Integer.BYTES + accountData.size() * BINARY_ACCOUNT_SIZE);
+        response.putInt(accountData.size());
+        while (accountData.hasNext()) {
+            AccountData account = accountData.next();
+            response.putLong(account.getAccountHigh())
+                    .putLong(account.getAccountLow())
+                    .putInt(account.getDebitCount())
+                    .putInt(account.getCreditCount())
+                    .putLong(account.getScaledBalance());
+        }
+        sendBinaryResponse(exchange, response);
+    }
 
-            // Update credit account
-            AccountData creditAccountData = accountDataMap.computeIfAbsent(creditAccount, k -> new AccountData(k));
-            synchronized (creditAccountData) {
-                creditAccountData.incrementCreditCount();
-                creditAccountData.addToBalance(amount);
+    private void sendReport(HttpExchange exchange, AccountDataIterator accountData) throws IOException {
+        if (acceptsNdjson(exchange)) {
+            try (JsonResponseWriter ndjsonResponse = startNdjsonResponse(exchange)) {
+                while (accountData.hasNext()) {
+                    writeAccountData(accountData.next(), ndjsonResponse).endLine();
+                }
             }
+        } else if (CHUNKED_RESPONSE_MIN_ACCOUNTS > 0 && accountData.size() >= CHUNKED_RESPONSE_MIN_ACCOUNTS) {
+            try (JsonResponseWriter jsonResponse = startChunkedJsonResponse(exchange)) {
+                writeJsonResponse(accountData, jsonResponse);
+            }
+        } else {
+            JsonResponseWriter jsonResponse = JsonResponseWriter.buffered(
+                    accountData.size() * ESTIMATED_ACCOUNT_JSON_SIZE + 2);
+            sendJsonResponse(exchange, writeJsonResponse(accountData, jsonResponse));
         }
     }
 
-    private static String createJsonResponse(Collection<AccountData> accountDataCollection) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        JsonArray jsonArray = new JsonArray();
+    static JsonResponseWriter writeJsonResponse(Iterator<AccountData> accountDataIterator,
+            JsonResponseWriter jsonResponse) throws IOException {
+        jsonResponse.beginArray();
 
-        for (AccountData accountData : accountDataCollection) {
-            JsonObject accountDataJson = new JsonObject();
-            accountDataJson.addProperty("account", accountData.getAccountNumber());
-            accountDataJson.addProperty("debitCount", accountData.getDebitCount());
-            accountDataJson.addProperty("creditCount", accountData.getCreditCount());
+        while (accountDataIterator.hasNext()) {
+            writeAccountData(accountDataIterator.next(), jsonResponse);
+        }
 
-            // add the balance as a JsonPrimitive of type number
-            accountDataJson.add("balance", new JsonPrimitive(accountData.getBalance()));
+        return jsonResponse.endArray();
+    }
 
-            jsonArray.add(accountDataJson);
-        }
+    private static JsonResponseWriter writeAccountData(AccountData accountData, JsonResponseWriter jsonResponse)
+            throws IOException {
+        return jsonResponse.beginObject()
+                .name("account").value(accountData.getAccountNumber())
+                .name("debitCount").value(accountData.getDebitCount())
+                .name("creditCount").value(accountData.getCreditCount())
+                .name("balance").scaledValue(accountData.getScaledBalance(), AccountData.SCALE)
+                .endObject();
+    }
 
-        return gson.toJson(jsonArray);
+    @FunctionalInterface
+    interface ChunkProcessor {
+        void accept(List<Transaction> chunk) throws IOException;
     }
 
-}
\ No newline at end of file
+    @FunctionalInterface
+    private interface TransactionParser {
+        void parse(AccountKeyTable accountKeys, ChunkProcessor chunkProcessor) throws IOException;
+    }
+}
@@ -0,0 +1,63 @@
+package com.EnergySavingBanking.onlinegame;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BalancedPointsGroupingTest {
+
+    @Test
+    void clanBiggerThanAGroupGetsAGroupOfItsOwn() {
+        int[][] groups = GroupingStrategy.BALANCED.calculateGroups(new int[]{
+                Game.encodeClan(7, 3),
+                Game.encodeClan(2, 1)
+        }, 6);
+
+        assertEquals(2, groups.length);
+        assertArrayEquals(new int[]{Game.encodeClan(2, 1)}, groups[0]);
+        assertArrayEquals(new int[]{Game.encodeClan(7, 3)}, groups[1]);
+    }
+
+    @Test
+    void onlyOversizedClansLeaveNoEmptyGroup() {
+        int[][] groups = GroupingStrategy.BALANCED.calculateGroups(new int[]{
+                Game.encodeClan(10, 5),
+                Game.encodeClan(9, 4),
+                Game.encodeClan(8, 3)
+        }, 2);
+
+        assertEquals(3, groups.length);
+        for (int[] group : groups) {
+            assertEquals(1, group.length);
+        }
+    }
+
+    @Test
+    void oversizedClansMixedWithFittingOnes() {
+        int groupCount = 4;
+        int[] clans = {
+                Game.encodeClan(5, 9),
+                Game.encodeClan(4, 8),
+                Game.encodeClan(3, 7),
+                Game.encodeClan(6, 6),
+                Game.encodeClan(1, 5),
+                Game.encodeClan(2, 4),
+                Game.encodeClan(1, 3)
+        };
+        int[][] groups = GroupingStrategy.BALANCED.calculateGroups(clans.clone(), groupCount);
+
+        int clanCount = 0;
+        for (int[] group : groups) {
+            assertTrue(group.length > 0);
+            int players = 0;
+            for (int clan : group) {
+                players += Game.decodeNumberOfPlayers(clan);
+            }
+            assertTrue(players <= groupCount || group.length == 1);
+            clanCount += group.length;
+        }
+        assertEquals(clans.length, clanCount);
+    }
+}
@@ -0,0 +1,36 @@
+package com.EnergySavingBanking.transactions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class ShardedAggregatorTest {
+
+    @Test
+    void postingsRoundedToZeroKeepTheirSide() {
+        AccountKeyTable accountKeys = new AccountKeyTable();
+        int account = accountKeys.intern(1, 1);
+        int otherAccount = accountKeys.intern(2, 2);
+        ShardedAggregator aggregator = new ShardedAggregator(accountKeys, 2, 1, Runnable::run);
+
+        // 0.005 and 0.001 scale to 0
+        aggregator.submitInline(List.of(
+                new Transaction(account, otherAccount, 0),
+                new Transaction(account, account, 0),
+                new Transaction(account, otherAccount, 1)));
+        AccountDataMergeIterator report = aggregator.finish();
+
+        AccountData first = report.next();
+        assertEquals(3, first.getDebitCount());
+        assertEquals(1, first.getCreditCount());
+        assertEquals(-1, first.getScaledBalance());
+        AccountData second = report.next();
+        assertEquals(0, second.getDebitCount());
+        assertEquals(2, second.getCreditCount());
+        assertEquals(1, second.getScaledBalance());
+        assertFalse(report.hasNext());
+    }
+}